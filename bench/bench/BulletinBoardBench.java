@@ -0,0 +1,118 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.PostObject;
+import server.AppendLog;
+import server.BulletinBoard;
+
+/**
+ * Benchmarks BulletinBoard.addPost and getPosts on boards that already hold
+ * 10k, 100k and 1M posts spread over a fixed set of recipients.
+ *
+ * The fsync parameter picks the log policy: "interval" measures the
+ * in-process cost, "always" includes a real fsync per post. The store
+ * parameter compares the heap board with the memory-mapped segments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BulletinBoardBench {
+
+    private static final int USERS = 1000;
+
+    // posts per getPostsPage call
+    private static final int PAGE = 20;
+
+    @Param({"10000", "100000", "1000000"})
+    public int boardSize;
+
+    @Param({"interval", "always"})
+    public String fsync;
+
+    @Param({"json", "segments"})
+    public String store;
+
+    private Path dir;
+    private BulletinBoard board;
+    private int counter;
+
+    // per user, the seq just before its newest PAGE posts (0 if it has no more than that)
+    private long[] pageSince;
+
+    // a realistic post body: base64 ciphertext, ElGamal-wrapped key and GCM iv
+    private static final String MESSAGE = "x".repeat(120);
+    private static final String WRAPPED_KEY = "k".repeat(344);
+    private static final String IV = "i".repeat(16);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("board-bench");
+        String boardFile = new File(dir.toFile(), "board.json").getPath();
+
+        // fill quickly with a relaxed policy, then reopen with the policy under test
+        int segmentSize = "segments".equals(store) ? 64 * 1024 * 1024 : 0;
+        BulletinBoard filler = new BulletinBoard(boardFile, new BulletinBoard.Options()
+            .syncPolicy(AppendLog.SyncPolicy.interval(1000))
+            .compactInterval(0)
+            .segmentSize(segmentSize));
+        // each user's last PAGE + 1 seqs, oldest overwritten first
+        long[][] recent = new long[USERS][PAGE + 1];
+        int[] count = new int[USERS];
+        for (int i = 0; i < boardSize; i++) {
+            int user = i % USERS;
+            PostObject post = new PostObject("user" + user, MESSAGE, WRAPPED_KEY, IV);
+            filler.addPost(post);
+            recent[user][count[user]++ % (PAGE + 1)] = post.getSeq();
+        }
+        pageSince = new long[USERS];
+        for (int user = 0; user < USERS; user++) {
+            pageSince[user] = count[user] > PAGE ? recent[user][count[user] % (PAGE + 1)] : 0;
+        }
+        filler.compact();
+        filler.close();
+
+        board = new BulletinBoard(boardFile, new BulletinBoard.Options()
+            .syncPolicy(AppendLog.SyncPolicy.parse(fsync, 100))
+            .compactInterval(0)
+            .segmentSize(segmentSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        board.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public boolean addPost() {
+        int n = counter++;
+        return board.addPost(new PostObject("user" + (n % USERS), MESSAGE, WRAPPED_KEY, IV));
+    }
+
+    @Benchmark
+    public List<PostObject> getPostsAll() {
+        return board.getPosts("user" + (counter++ % USERS));
+    }
+
+    @Benchmark
+    public List<PostObject> getPostsPage() {
+        // the newest PAGE posts for a user, as an incremental poll would fetch
+        int user = counter++ % USERS;
+        return board.getPosts("user" + user, pageSince[user], PAGE);
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import util.EncryptionUtil;
+
+/**
+ * Benchmarks the per-request crypto: scrypt password hashing and the
+ * ElGamal + AES-GCM hybrid encryption used for posts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBench {
+
+    private byte[] salt;
+    private String publicKey;
+    private String privateKey;
+    private String[] encrypted;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        salt = EncryptionUtil.generateRandomBytes(16);
+
+        String[] keys = EncryptionUtil.generateKeyPair();
+        publicKey = keys[0];
+        privateKey = keys[1];
+        encrypted = EncryptionUtil.encryptMessage("benchmark message body", publicKey);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] scryptHash() {
+        return EncryptionUtil.scryptHash("correct horse battery staple", salt);
+    }
+
+    @Benchmark
+    public String[] encryptMessage() throws Exception {
+        return EncryptionUtil.encryptMessage("benchmark message body", publicKey);
+    }
+
+    @Benchmark
+    public String decryptMessage() throws Exception {
+        return EncryptionUtil.decryptMessage(encrypted[0], encrypted[1], encrypted[2], privateKey);
+    }
+}
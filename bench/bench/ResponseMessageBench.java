@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import common.PostObject;
+import common.ResponseMessage;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Benchmarks ResponseMessage round trips for mailboxes of different sizes,
+ * both through the JSONSerializable tree path and the streaming path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseMessageBench {
+
+    @Param({"10", "1000", "10000"})
+    public int posts;
+
+    private ResponseMessage response;
+    private String serialized;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<PostObject> list = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            PostObject post = new PostObject("bob", "x".repeat(120), "k".repeat(344), "i".repeat(16));
+            post.setSeq(i + 1);
+            list.add(post);
+        }
+        response = new ResponseMessage(list, posts, false);
+        serialized = response.serialize();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return response.serialize();
+    }
+
+    @Benchmark
+    public ResponseMessage deserialize() throws InvalidObjectException {
+        ResponseMessage copy = new ResponseMessage();
+        copy.deserialize(JsonIO.readObject(serialized));
+        return copy;
+    }
+
+    @Benchmark
+    public ResponseMessage roundTrip() throws InvalidObjectException {
+        ResponseMessage copy = new ResponseMessage();
+        copy.deserialize(JsonIO.readObject(response.serialize()));
+        return copy;
+    }
+
+    @Benchmark
+    public JSONObject streamingRoundTrip(Blackhole bh) throws IOException {
+        StringWriter out = new StringWriter();
+        response.writeTo(out);
+        return ResponseMessage.readStreaming(new StringReader(out.toString()), bh::consume);
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import util.EncryptionUtil;
+import util.TotpVerifier;
+
+/**
+ * Benchmarks TOTP verification for a correct code and a wrong one (the
+ * wrong code has to be checked against every step in the skew window).
+ *
+ * The int variants take the code parsed once with parseCode and should show
+ * a gc.alloc.rate.norm of 0 under -prof gc; the trial also fails outright if
+ * that path allocates anything once warm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TotpBench {
+
+    private byte[] key;
+    private String validCode;
+    private String wrongCode;
+    private int validInt;
+    private int wrongInt;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        key = EncryptionUtil.generateRandomBytes(20);
+        validCode = TotpVerifier.getCurrentCode(key);
+
+        // any other six digits are almost certainly wrong for all three steps
+        wrongCode = String.format("%06d", (Integer.parseInt(validCode) + 500000) % 1000000);
+
+        validInt = TotpVerifier.parseCode(validCode);
+        wrongInt = TotpVerifier.parseCode(wrongCode);
+    }
+
+    @TearDown(Level.Trial)
+    public void checkAllocationFree() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int calls = 100_000;
+        boolean sink = false;
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            sink ^= TotpVerifier.isValidCode(key, wrongInt);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        if (allocated > 0) {
+            throw new IllegalStateException("int TOTP path allocated " + allocated
+                + " bytes over " + calls + " calls (" + sink + ")");
+        }
+    }
+
+    @Benchmark
+    public boolean isValidCodeMatch() {
+        return TotpVerifier.isValidCode(key, validCode);
+    }
+
+    @Benchmark
+    public boolean isValidCodeMiss() {
+        return TotpVerifier.isValidCode(key, wrongCode);
+    }
+
+    @Benchmark
+    public boolean isValidIntMatch() {
+        return TotpVerifier.isValidCode(key, validInt);
+    }
+
+    @Benchmark
+    public boolean isValidIntMiss() {
+        return TotpVerifier.isValidCode(key, wrongInt);
+    }
+}
@@ -0,0 +1,117 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import common.PostObject;
+import util.EncryptionUtil;
+import util.KeyWrapScheme;
+
+/**
+ * Decrypts a whole mailbox on a fork-join pool.
+ *
+ * Every post needs an ElGamal private-key operation, which takes
+ * milliseconds, so decrypting them one at a time does not scale with the
+ * cores on the box. Results come back in the same order as the posts, and
+ * a post that fails (wrong key, GCM tag mismatch) is reported on its own
+ * result instead of aborting the batch.
+ *
+ * Client is still an empty stub, so no client flow calls this yet; the
+ * fetch path should hand its decoded posts here once it exists.
+ */
+public class MailboxDecryptor {
+
+    /**
+     * The outcome for one post: either the plaintext or the error.
+     */
+    public static class Result {
+        private final PostObject post;
+        private final String plaintext;
+        private final Exception error;
+
+        private Result(PostObject post, String plaintext, Exception error) {
+            this.post = post;
+            this.plaintext = plaintext;
+            this.error = error;
+        }
+
+        public PostObject getPost() {
+            return post;
+        }
+
+        public String getPlaintext() {
+            return plaintext;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public MailboxDecryptor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MailboxDecryptor(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Decrypts every post with the given private key, in parallel.
+     *
+     * @return one result per post, in the same order as posts
+     */
+    public List<Result> decryptAll(List<PostObject> posts, String base64PrivateKey) throws InterruptedException {
+        Result[] results = new Result[posts.size()];
+
+        try {
+            pool.submit(() -> IntStream.range(0, results.length).parallel()
+                .forEach(i -> results[i] = decryptOne(posts.get(i), base64PrivateKey))
+            ).get();
+        } catch (ExecutionException e) {
+            // decryptOne catches per-post failures, so this is a bug rather than bad input
+            throw new IllegalStateException("mailbox decryption failed", e.getCause());
+        }
+
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Convenience wrapper that returns only the messages that decrypted,
+     * in mailbox order.
+     */
+    public List<String> decryptReadable(List<PostObject> posts, String base64PrivateKey) throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        for (Result result : decryptAll(posts, base64PrivateKey)) {
+            if (result.isOk()) {
+                messages.add(result.getPlaintext());
+            }
+        }
+        return messages;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static Result decryptOne(PostObject post, String base64PrivateKey) {
+        try {
+            String plaintext = EncryptionUtil.decryptMessage(
+                post.getMessage(), post.getWrappedKey(), post.getIv(), base64PrivateKey,
+                KeyWrapScheme.fromId(post.getScheme()));
+            return new Result(post, plaintext, null);
+        } catch (Exception e) {
+            return new Result(post, null, e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package client;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.PubKeyRequestMessage;
+import common.PubKeyResponseMessage;
+import common.StatusMessage;
+import util.EncryptionUtil;
+import util.KeyWrapScheme;
+
+/**
+ * Keeps recipients' public keys, already parsed, for senders that post to
+ * the same few users again and again.
+ *
+ * A cached key skips both the PubKeyRequest round trip and the X.509 parse.
+ * Entries expire after a fixed time, and the server's replies to
+ * PubKeyRequest and Post carry the key's version (a fingerprint). When a
+ * Post reply reports a different version than the cached one, the entry is
+ * dropped so the next post fetches the new key.
+ */
+public class PublicKeyCache {
+
+    /**
+     * A parsed key with its wrap scheme and version.
+     */
+    public static class Entry {
+        private final PublicKey key;
+        private final KeyWrapScheme scheme;
+        private final String version;
+        private final long expiresAt;
+
+        private Entry(PublicKey key, KeyWrapScheme scheme, String version, long expiresAt) {
+            this.key = key;
+            this.scheme = scheme;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        public PublicKey getKey() {
+            return key;
+        }
+
+        public KeyWrapScheme getScheme() {
+            return scheme;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    /**
+     * @param ttlSeconds how long a key is used before it is fetched again
+     */
+    public PublicKeyCache(int ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000L;
+    }
+
+    /**
+     * Returns the cached key for a user, or null if there is none or it expired.
+     */
+    public Entry get(String user) {
+        Entry entry = entries.get(user);
+        if (entry == null) return null;
+
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(user, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a key fetched from the server. The key is only parsed when its
+     * version differs from the cached one; otherwise the entry is renewed.
+     */
+    public Entry put(String user, String base64PublicKey, String version) throws GeneralSecurityException {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        Entry old = entries.get(user);
+
+        Entry entry;
+        if (old != null && version != null && version.equals(old.version)) {
+            entry = new Entry(old.key, old.scheme, version, expiresAt);
+        } else {
+            entry = new Entry(EncryptionUtil.decodePublicKey(base64PublicKey),
+                KeyWrapScheme.ofPublicKey(base64PublicKey), version, expiresAt);
+        }
+        entries.put(user, entry);
+        return entry;
+    }
+
+    /**
+     * Caches the key from the server's reply to a single-user PubKeyRequest.
+     * Returns null if the request failed.
+     */
+    public Entry accept(String user, StatusMessage reply) throws GeneralSecurityException {
+        if (!reply.getStatus()) {
+            entries.remove(user);
+            return null;
+        }
+        return put(user, reply.getPayload(), reply.getVersion());
+    }
+
+    /**
+     * Caches every key in the reply to a bulk PubKeyRequest.
+     */
+    public void accept(PubKeyResponseMessage reply) throws GeneralSecurityException {
+        for (PubKeyResponseMessage.Entry key : reply.getEntries()) {
+            put(key.getUser(), key.getPubkey(), key.getVersion());
+        }
+    }
+
+    /**
+     * Checks the key version from a Post reply against the cached one and
+     * drops the entry if the recipient's key has changed.
+     *
+     * @return false if the cached key was stale
+     */
+    public boolean checkVersion(String user, String version) {
+        Entry entry = entries.get(user);
+        if (entry == null || version == null || version.equals(entry.version)) {
+            return true;
+        }
+        entries.remove(user, entry);
+        return false;
+    }
+
+    /**
+     * Builds one bulk PubKeyRequest for the users that have no fresh entry,
+     * or returns null if every key is cached.
+     */
+    public PubKeyRequestMessage requestMissing(Collection<String> users) {
+        List<String> missing = new ArrayList<>();
+        for (String user : new LinkedHashSet<>(users)) {
+            if (get(user) == null) {
+                missing.add(user);
+            }
+        }
+        return missing.isEmpty() ? null : new PubKeyRequestMessage(missing);
+    }
+
+    public void invalidate(String user) {
+        entries.remove(user);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,85 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+import java.io.InvalidObjectException;
+
+/**
+ * represents a client telling the server it has read a user's posts up to a sequence id
+ * the server deletes those posts and answers with a status giving how many were removed
+ * token is the optional session token returned by Authenticate
+ */
+public class AckMessage implements JSONSerializable {
+
+    private static final String TYPE = "Ack";
+
+    private String user;
+    private long upTo;
+    private String token;
+
+    public AckMessage(String user, long upTo, String token) {
+        this.user = user;
+        this.upTo = upTo;
+        this.token = token;
+    }
+
+    public AckMessage() {
+        // used for deserialization
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public long getUpTo() {
+        return upTo;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    /**
+     * converts this message into a json object to send to the server
+     * includes the required type field, the username and the last sequence id read
+     */
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+        obj.put("type", TYPE);
+        obj.put("user", user);
+        obj.put("upto", upTo);
+        if (token != null) {
+            obj.put("token", token);
+        }
+        return obj;
+    }
+
+    @Override
+    /**
+     * populates this message from a received json object
+     * validates the type field and extracts the username and last sequence id read
+     */
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        if (!(obj instanceof JSONObject)) {
+            throw new InvalidObjectException("expected json object");
+        }
+
+        JSONObject json = (JSONObject) obj;
+
+        Object type = json.get("type");
+        if (type == null || !TYPE.equals(type)) {
+            throw new InvalidObjectException("invalid or missing type field");
+        }
+
+        this.user = (String) json.get("user");
+        Object rawUpTo = json.get("upto");
+        if (!(rawUpTo instanceof Number)) {
+            throw new InvalidObjectException("missing upto field");
+        }
+        this.upTo = ((Number) rawUpTo).longValue();
+        this.token = (String) json.get("token");
+    }
+}
@@ -0,0 +1,110 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * represents a client request to post many encrypted messages at once, e.g. one per recipient of a broadcast
+ * each entry has the same fields as a Post (user, message, wrappedkey, iv and an optional scheme)
+ * token is the optional session token returned by Authenticate
+ */
+public class BatchPostMessage implements JSONSerializable {
+
+    private static final String TYPE = "BatchPost";
+
+    private List<PostObject> entries;
+    private String token;
+
+    public BatchPostMessage(List<PostObject> entries) {
+        this(entries, null);
+    }
+
+    public BatchPostMessage(List<PostObject> entries, String token) {
+        this.entries = entries;
+        this.token = token;
+    }
+
+    public BatchPostMessage() {
+        // used for deserialization
+    }
+
+    public List<PostObject> getEntries() {
+        return entries;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    /**
+     * converts this message into a json object to send to the server
+     * includes the required type field and an entries array of posts
+     */
+    public JSONType toJSONType() {
+        JSONArray array = new JSONArray();
+        for (PostObject entry : entries) {
+            JSONObject post = new JSONObject();
+            post.put("user", entry.getUser());
+            post.put("message", entry.getMessage());
+            post.put("wrappedkey", entry.getWrappedKey());
+            post.put("iv", entry.getIv());
+            if (entry.getScheme() != null) {
+                post.put("scheme", entry.getScheme());
+            }
+            array.add(post);
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("type", TYPE);
+        obj.put("entries", array);
+        if (token != null) {
+            obj.put("token", token);
+        }
+        return obj;
+    }
+
+    @Override
+    /**
+     * populates this message from a received json object
+     * validates the type field and reads every entry; a sequence id or time sent by the client is ignored
+     */
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        if (!(obj instanceof JSONObject)) {
+            throw new InvalidObjectException("expected json object");
+        }
+
+        JSONObject json = (JSONObject) obj;
+
+        Object type = json.get("type");
+        if (type == null || !TYPE.equals(type)) {
+            throw new InvalidObjectException("invalid or missing type field");
+        }
+
+        Object rawEntries = json.get("entries");
+        if (!(rawEntries instanceof JSONArray)) {
+            throw new InvalidObjectException("missing entries array");
+        }
+
+        JSONArray array = (JSONArray) rawEntries;
+        this.entries = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            Object rawEntry = array.get(i);
+            if (!(rawEntry instanceof JSONObject)) {
+                throw new InvalidObjectException("entry " + i + " is not an object");
+            }
+            PostObject entry = new PostObject();
+            entry.deserialize((JSONObject) rawEntry);
+            entry.setSeq(0);
+            entry.setTime(0);
+            entries.add(entry);
+        }
+        this.token = (String) json.get("token");
+    }
+}
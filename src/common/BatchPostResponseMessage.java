@@ -0,0 +1,86 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * represents the server's answer to a BatchPost
+ * holds one status per entry, in the same order as the request's entries
+ */
+public class BatchPostResponseMessage implements JSONSerializable {
+
+    private static final String TYPE = "BatchPostResponse";
+
+    private List<StatusMessage> results;
+
+    public BatchPostResponseMessage(List<StatusMessage> results) {
+        this.results = results;
+    }
+
+    public BatchPostResponseMessage() {
+        // used during deserialization
+    }
+
+    public List<StatusMessage> getResults() {
+        return results;
+    }
+
+    @Override
+    /**
+     * converts this message into a json object with a results array
+     * each result has the status and payload of a Status message
+     */
+    public JSONType toJSONType() {
+        JSONArray array = new JSONArray();
+        for (StatusMessage result : results) {
+            JSONObject entry = new JSONObject();
+            entry.put("status", result.getStatus());
+            entry.put("payload", result.getPayload());
+            array.add(entry);
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("type", TYPE);
+        obj.put("results", array);
+        return obj;
+    }
+
+    @Override
+    /**
+     * populates this message from a received json object
+     * validates the type field and reads every result
+     */
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        if (!(obj instanceof JSONObject)) {
+            throw new InvalidObjectException("expected json object");
+        }
+
+        JSONObject json = (JSONObject) obj;
+
+        Object type = json.get("type");
+        if (type == null || !TYPE.equals(type)) {
+            throw new InvalidObjectException("invalid or missing type field");
+        }
+
+        Object rawResults = json.get("results");
+        if (!(rawResults instanceof JSONArray)) {
+            throw new InvalidObjectException("missing results array");
+        }
+
+        JSONArray array = (JSONArray) rawResults;
+        this.results = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            if (!(array.get(i) instanceof JSONObject)) {
+                throw new InvalidObjectException("results must hold objects");
+            }
+            JSONObject entry = (JSONObject) array.get(i);
+            results.add(new StatusMessage((Boolean) entry.get("status"), (String) entry.get("payload")));
+        }
+    }
+}
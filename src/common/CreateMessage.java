@@ -9,6 +9,7 @@ import java.io.InvalidObjectException;
 /**
  * represents a client request to create a new user account
  * includes a username, plaintext password, and base64-encoded public key
+ * scheme names the key wrap scheme of the public key; a missing scheme means elgamal
  */
 public class CreateMessage implements JSONSerializable {
 
@@ -17,11 +18,17 @@ public class CreateMessage implements JSONSerializable {
     private String user;
     private String pass;
     private String pubkey;
+    private String scheme;
 
     public CreateMessage(String user, String pass, String pubkey) {
+        this(user, pass, pubkey, null);
+    }
+
+    public CreateMessage(String user, String pass, String pubkey, String scheme) {
         this.user = user;
         this.pass = pass;
         this.pubkey = pubkey;
+        this.scheme = scheme;
     }
 
     public CreateMessage() {
@@ -40,6 +47,10 @@ public class CreateMessage implements JSONSerializable {
         return pubkey;
     }
 
+    public String getScheme() {
+        return scheme;
+    }
+
     @Override
     /**
      * converts this message into a json object that can be sent to the server
@@ -51,6 +62,9 @@ public class CreateMessage implements JSONSerializable {
         obj.put("user", user);
         obj.put("pass", pass);
         obj.put("pubkey", pubkey);
+        if (scheme != null) {
+            obj.put("scheme", scheme);
+        }
         return obj;
     }
 
@@ -74,5 +88,6 @@ public class CreateMessage implements JSONSerializable {
         this.user = (String) json.get("user");
         this.pass = (String) json.get("pass");
         this.pubkey = (String) json.get("pubkey");
+        this.scheme = (String) json.get("scheme");
     }
 }
@@ -7,16 +7,33 @@ import merrimackutil.json.types.JSONType;
 import java.io.InvalidObjectException;
 
 /**
- * represents a client request to retrieve all messages addressed to a specific user
+ * represents a client request to retrieve messages addressed to a specific user
+ * since is the sequence id of the last post the client already has (0 for everything)
+ * limit caps how many posts come back in one response (0 for no cap)
+ * token is the optional session token returned by Authenticate
  */
 public class GetMessage implements JSONSerializable {
 
     private static final String TYPE = "GetMessage";
 
     private String user;
+    private long since;
+    private int limit;
+    private String token;
 
     public GetMessage(String user) {
+        this(user, 0, 0);
+    }
+
+    public GetMessage(String user, long since, int limit) {
+        this(user, since, limit, null);
+    }
+
+    public GetMessage(String user, long since, int limit, String token) {
         this.user = user;
+        this.since = since;
+        this.limit = limit;
+        this.token = token;
     }
 
     public GetMessage() {
@@ -27,22 +44,39 @@ public class GetMessage implements JSONSerializable {
         return user;
     }
 
+    public long getSince() {
+        return since;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
     @Override
     /**
      * converts this message into a json object to send to the server
-     * includes the required type field and the username field
+     * includes the required type field, the username field and the paging fields
      */
     public JSONType toJSONType() {
         JSONObject obj = new JSONObject();
         obj.put("type", TYPE);
         obj.put("user", user);
+        obj.put("since", since);
+        obj.put("limit", limit);
+        if (token != null) {
+            obj.put("token", token);
+        }
         return obj;
     }
 
     @Override
     /**
      * populates this message from a received json object
-     * validates the type field and extracts the username field
+     * validates the type field and extracts the username and optional paging fields
      */
     public void deserialize(JSONType obj) throws InvalidObjectException {
         if (!(obj instanceof JSONObject)) {
@@ -57,5 +91,12 @@ public class GetMessage implements JSONSerializable {
         }
 
         this.user = (String) json.get("user");
+
+        // older clients send no paging fields and get the whole mailbox
+        Object rawSince = json.get("since");
+        Object rawLimit = json.get("limit");
+        this.since = rawSince instanceof Number ? ((Number) rawSince).longValue() : 0;
+        this.limit = rawLimit instanceof Number ? ((Number) rawLimit).intValue() : 0;
+        this.token = (String) json.get("token");
     }
 }
@@ -9,6 +9,8 @@ import java.io.InvalidObjectException;
 /**
  * represents a client request to post an encrypted message to the bulletin board
  * includes the encrypted message ciphertext, a wrapped aes key, and the encryption iv
+ * token is the optional session token returned by Authenticate
+ * scheme names how the aes key was wrapped; a missing scheme means elgamal
  */
 public class PostMessage implements JSONSerializable {
 
@@ -18,12 +20,24 @@ public class PostMessage implements JSONSerializable {
     private String message;
     private String wrappedkey;
     private String iv;
+    private String token;
+    private String scheme;
 
     public PostMessage(String user, String message, String wrappedkey, String iv) {
+        this(user, message, wrappedkey, iv, null);
+    }
+
+    public PostMessage(String user, String message, String wrappedkey, String iv, String token) {
+        this(user, message, wrappedkey, iv, token, null);
+    }
+
+    public PostMessage(String user, String message, String wrappedkey, String iv, String token, String scheme) {
         this.user = user;
         this.message = message;
         this.wrappedkey = wrappedkey;
         this.iv = iv;
+        this.token = token;
+        this.scheme = scheme;
     }
 
     public PostMessage() {
@@ -46,6 +60,14 @@ public class PostMessage implements JSONSerializable {
         return iv;
     }
 
+    public String getToken() {
+        return token;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
     @Override
     /**
      * converts this message into a json object to send to the server
@@ -58,6 +80,12 @@ public class PostMessage implements JSONSerializable {
         obj.put("message", message);
         obj.put("wrappedkey", wrappedkey);
         obj.put("iv", iv);
+        if (token != null) {
+            obj.put("token", token);
+        }
+        if (scheme != null) {
+            obj.put("scheme", scheme);
+        }
         return obj;
     }
 
@@ -82,5 +110,7 @@ public class PostMessage implements JSONSerializable {
         this.message = (String) json.get("message");
         this.wrappedkey = (String) json.get("wrappedkey");
         this.iv = (String) json.get("iv");
+        this.token = (String) json.get("token");
+        this.scheme = (String) json.get("scheme");
     }
 }
@@ -1,5 +1,6 @@
 package common;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONType;
@@ -25,6 +26,19 @@ public class PostObject implements JSONSerializable {
     @JsonProperty("iv")
     private String iv;
 
+    // assigned by the server when the post is stored; increases monotonically across the board
+    @JsonProperty("seq")
+    private long seq;
+
+    // when the server stored the post, in epoch milliseconds; 0 for posts stored before it was recorded
+    @JsonProperty("time")
+    private long time;
+
+    // key wrap scheme of wrappedkey; absent for the original elgamal scheme
+    @JsonProperty("scheme")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String scheme;
+
     // default constructor for Jackson and deserialization
     public PostObject() {}
 
@@ -59,6 +73,30 @@ public class PostObject implements JSONSerializable {
         return iv;
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public void setScheme(String scheme) {
+        this.scheme = scheme;
+    }
+
     @Override
     /**
      * converts this post to a json object for storage in board.json
@@ -69,6 +107,13 @@ public class PostObject implements JSONSerializable {
         obj.put("message", message);
         obj.put("wrappedkey", wrappedkey);
         obj.put("iv", iv);
+        obj.put("seq", seq);
+        if (time != 0) {
+            obj.put("time", time);
+        }
+        if (scheme != null) {
+            obj.put("scheme", scheme);
+        }
         return obj;
     }
 
@@ -87,5 +132,12 @@ public class PostObject implements JSONSerializable {
         this.message = (String) json.get("message");
         this.wrappedkey = (String) json.get("wrappedkey");
         this.iv = (String) json.get("iv");
+
+        // posts stored before sequence ids existed have none
+        Object rawSeq = json.get("seq");
+        this.seq = rawSeq instanceof Number ? ((Number) rawSeq).longValue() : 0;
+        Object rawTime = json.get("time");
+        this.time = rawTime instanceof Number ? ((Number) rawTime).longValue() : 0;
+        this.scheme = (String) json.get("scheme");
     }
 }
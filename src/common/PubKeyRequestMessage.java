@@ -1,25 +1,34 @@
 package common;
 
 import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
 import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * represents a client request to fetch the public key of another user
  * used before posting a message to encrypt the aes key with the receiver's elgamal key
+ * a bulk request names several users at once and is answered with a PubKeyResponse
  */
 public class PubKeyRequestMessage implements JSONSerializable {
 
     private static final String TYPE = "PubKeyRequest";
 
     private String user;
+    private List<String> users;
 
     public PubKeyRequestMessage(String user) {
         this.user = user;
     }
 
+    public PubKeyRequestMessage(List<String> users) {
+        this.users = users;
+    }
+
     public PubKeyRequestMessage() {
         // empty constructor for deserialization
     }
@@ -28,22 +37,39 @@ public class PubKeyRequestMessage implements JSONSerializable {
         return user;
     }
 
+    /**
+     * the users named by a bulk request, or null for a single-user request
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    public boolean isBulk() {
+        return users != null;
+    }
+
     @Override
     /**
      * converts this message into a json object to send to the server
-     * includes the required type field and the requested username
+     * includes the required type field and the requested username or usernames
      */
     public JSONType toJSONType() {
         JSONObject obj = new JSONObject();
         obj.put("type", TYPE);
-        obj.put("user", user);
+        if (users != null) {
+            JSONArray array = new JSONArray();
+            array.addAll(users);
+            obj.put("users", array);
+        } else {
+            obj.put("user", user);
+        }
         return obj;
     }
 
     @Override
     /**
      * populates this message from a received json object
-     * validates the type field and extracts the requested username
+     * validates the type field and extracts the requested username or usernames
      */
     public void deserialize(JSONType obj) throws InvalidObjectException {
         if (!(obj instanceof JSONObject)) {
@@ -58,5 +84,21 @@ public class PubKeyRequestMessage implements JSONSerializable {
         }
 
         this.user = (String) json.get("user");
+
+        Object rawUsers = json.get("users");
+        if (rawUsers == null) {
+            this.users = null;
+        } else if (rawUsers instanceof JSONArray) {
+            JSONArray array = (JSONArray) rawUsers;
+            this.users = new ArrayList<>(array.size());
+            for (int i = 0; i < array.size(); i++) {
+                if (!(array.get(i) instanceof String)) {
+                    throw new InvalidObjectException("users must be strings");
+                }
+                this.users.add((String) array.get(i));
+            }
+        } else {
+            throw new InvalidObjectException("users must be an array");
+        }
     }
 }
@@ -0,0 +1,126 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * represents the server's answer to a bulk PubKeyRequest
+ * holds one entry per requested user that exists, with the key, its wrap scheme and its version
+ */
+public class PubKeyResponseMessage implements JSONSerializable {
+
+    private static final String TYPE = "PubKeyResponse";
+
+    /**
+     * one user's public key as returned by the server
+     */
+    public static class Entry {
+        private final String user;
+        private final String pubkey;
+        private final String scheme;
+        private final String version;
+
+        public Entry(String user, String pubkey, String scheme, String version) {
+            this.user = user;
+            this.pubkey = pubkey;
+            this.scheme = scheme;
+            this.version = version;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getPubkey() {
+            return pubkey;
+        }
+
+        public String getScheme() {
+            return scheme;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    private List<Entry> entries;
+
+    public PubKeyResponseMessage(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public PubKeyResponseMessage() {
+        // used during deserialization
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    /**
+     * converts this message into a json object with a keys array
+     */
+    public JSONType toJSONType() {
+        JSONArray keys = new JSONArray();
+        for (Entry entry : entries) {
+            JSONObject key = new JSONObject();
+            key.put("user", entry.user);
+            key.put("pubkey", entry.pubkey);
+            if (entry.scheme != null) {
+                key.put("scheme", entry.scheme);
+            }
+            key.put("version", entry.version);
+            keys.add(key);
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("type", TYPE);
+        obj.put("keys", keys);
+        return obj;
+    }
+
+    @Override
+    /**
+     * populates this message from a received json object
+     * validates the type field and reads every entry of the keys array
+     */
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        if (!(obj instanceof JSONObject)) {
+            throw new InvalidObjectException("expected json object");
+        }
+
+        JSONObject json = (JSONObject) obj;
+
+        Object type = json.get("type");
+        if (type == null || !TYPE.equals(type)) {
+            throw new InvalidObjectException("invalid or missing type field");
+        }
+
+        Object rawKeys = json.get("keys");
+        if (!(rawKeys instanceof JSONArray)) {
+            throw new InvalidObjectException("missing keys array");
+        }
+
+        JSONArray keys = (JSONArray) rawKeys;
+        this.entries = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (!(keys.get(i) instanceof JSONObject)) {
+                throw new InvalidObjectException("keys must hold objects");
+            }
+            JSONObject key = (JSONObject) keys.get(i);
+            entries.add(new Entry(
+                (String) key.get("user"),
+                (String) key.get("pubkey"),
+                (String) key.get("scheme"),
+                (String) key.get("version")));
+        }
+    }
+}
@@ -1,25 +1,51 @@
 package common;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONType;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONArray;
 
+import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * represents a server response to a GetMessage
  * contains an array of PostObject messages for the requesting user
+ * next is the cursor to send as since on the following GetMessage
+ * more is true when the limit cut the response short
+ *
+ * large mailboxes should use writeTo and readStreaming, which handle one post
+ * at a time instead of building the whole json tree and string in memory
  */
 public class ResponseMessage implements JSONSerializable {
 
     private static final String TYPE = "GetResponseMessage";
+
+    // shared, thread-safe factory for the streaming writer and parser
+    private static final JsonFactory JSON = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
     private List<PostObject> posts;
+    private long next;
+    private boolean more;
 
     public ResponseMessage(List<PostObject> posts) {
+        this(posts, posts.isEmpty() ? 0 : posts.get(posts.size() - 1).getSeq(), false);
+    }
+
+    public ResponseMessage(List<PostObject> posts, long next, boolean more) {
         this.posts = posts;
+        this.next = next;
+        this.more = more;
     }
 
     public ResponseMessage() {
@@ -30,9 +56,17 @@ public class ResponseMessage implements JSONSerializable {
         return posts;
     }
 
+    public long getNext() {
+        return next;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
     @Override
     /**
-     * converts this response into a json object with type and posts array
+     * converts this response into a json object with type, posts array and cursor
      */
     public JSONType toJSONType() {
         JSONObject obj = new JSONObject();
@@ -44,6 +78,8 @@ public class ResponseMessage implements JSONSerializable {
         }
 
         obj.put("posts", postArray);
+        obj.put("next", next);
+        obj.put("more", more);
         return obj;
     }
 
@@ -76,5 +112,147 @@ public class ResponseMessage implements JSONSerializable {
             post.deserialize((JSONType) postArray.get(i));
             posts.add(post);
         }
+
+        Object rawNext = json.get("next");
+        Object rawMore = json.get("more");
+        this.next = rawNext instanceof Number ? ((Number) rawNext).longValue() : 0;
+        this.more = rawMore instanceof Boolean && (Boolean) rawMore;
+    }
+
+    /**
+     * writes this response as a single json line body straight to the writer,
+     * emitting each post as it goes so no full copy of the mailbox is built
+     * the output never contains a raw newline, so it is safe for the line protocol
+     */
+    public void writeTo(Writer out) throws IOException {
+        try (JsonGenerator gen = JSON.createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("type", TYPE);
+
+            gen.writeArrayFieldStart("posts");
+            for (PostObject post : posts) {
+                gen.writeStartObject();
+                gen.writeStringField("user", post.getUser());
+                gen.writeStringField("message", post.getMessage());
+                gen.writeStringField("wrappedkey", post.getWrappedKey());
+                gen.writeStringField("iv", post.getIv());
+                gen.writeNumberField("seq", post.getSeq());
+                if (post.getTime() != 0) {
+                    gen.writeNumberField("time", post.getTime());
+                }
+                if (post.getScheme() != null) {
+                    gen.writeStringField("scheme", post.getScheme());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+
+            gen.writeNumberField("next", next);
+            gen.writeBooleanField("more", more);
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * incrementally parses one server message from the reader
+     * every element of a posts array is handed to onPost as soon as it is parsed
+     * and is not kept, so memory is bounded by a single post
+     * the remaining top-level fields (type, status, payload, next, more) are returned
+     * in the same form JsonIO would produce, so a Status reply can still be deserialized
+     */
+    public static JSONObject readStreaming(Reader in, Consumer<PostObject> onPost) throws IOException {
+        JSONObject head = new JSONObject();
+
+        try (JsonParser parser = JSON.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidObjectException("expected json object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+
+                if ("posts".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        onPost.accept(readPost(parser));
+                    }
+                } else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else {
+                    head.put(field, scalarValue(parser, token));
+                }
+            }
+        }
+        return head;
+    }
+
+    /**
+     * reads the fields of one post object; the parser is positioned on its start
+     */
+    private static PostObject readPost(JsonParser parser) throws IOException {
+        String user = null;
+        String message = null;
+        String wrappedkey = null;
+        String iv = null;
+        long seq = 0;
+        long time = 0;
+        String scheme = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "user":
+                    user = parser.getValueAsString();
+                    break;
+                case "message":
+                    message = parser.getValueAsString();
+                    break;
+                case "wrappedkey":
+                    wrappedkey = parser.getValueAsString();
+                    break;
+                case "iv":
+                    iv = parser.getValueAsString();
+                    break;
+                case "seq":
+                    seq = parser.getValueAsLong();
+                    break;
+                case "time":
+                    time = parser.getValueAsLong();
+                    break;
+                case "scheme":
+                    scheme = parser.getValueAsString();
+                    break;
+                default:
+                    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                    }
+            }
+        }
+
+        PostObject post = new PostObject(user, message, wrappedkey, iv);
+        post.setSeq(seq);
+        post.setTime(time);
+        post.setScheme(scheme);
+        return post;
+    }
+
+    /**
+     * converts a scalar token to the java type JsonIO uses (numbers become doubles)
+     */
+    private static Object scalarValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
     }
 }
@@ -8,6 +8,9 @@ import java.io.InvalidObjectException;
 
 /**
  * represents the server's response message with a boolean status and a payload string
+ * a successful Authenticate also carries a session token for later requests
+ * replies about a user's public key (PubKeyRequest, Post) carry the key's version,
+ * a fingerprint clients use to notice that a cached key was replaced
  */
 public class StatusMessage implements JSONSerializable {
 
@@ -15,10 +18,17 @@ public class StatusMessage implements JSONSerializable {
 
     private boolean status;
     private String payload;
+    private String token;
+    private String version;
 
     public StatusMessage(boolean status, String payload) {
+        this(status, payload, null);
+    }
+
+    public StatusMessage(boolean status, String payload, String token) {
         this.status = status;
         this.payload = payload;
+        this.token = token;
     }
 
     public StatusMessage() {
@@ -33,6 +43,18 @@ public class StatusMessage implements JSONSerializable {
         return payload;
     }
 
+    public String getToken() {
+        return token;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
     
     @Override
     /**
@@ -43,6 +65,12 @@ public class StatusMessage implements JSONSerializable {
         obj.put("type", TYPE); 
         obj.put("status", status);
         obj.put("payload", payload);
+        if (token != null) {
+            obj.put("token", token);
+        }
+        if (version != null) {
+            obj.put("version", version);
+        }
         return obj;
     }
     
@@ -66,5 +94,7 @@ public class StatusMessage implements JSONSerializable {
 
         this.status = (Boolean) json.get("status");
         this.payload = (String) json.get("payload");
+        this.token = (String) json.get("token");
+        this.version = (String) json.get("version");
     }
 }
@@ -0,0 +1,83 @@
+package common;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+import java.io.InvalidObjectException;
+
+/**
+ * represents a client request to have new posts for a user pushed over the connection
+ * the server answers with a status, then sends the posts after since as a GetResponseMessage,
+ * then one GetResponseMessage per new post until the connection closes
+ * token is the optional session token returned by Authenticate
+ */
+public class SubscribeMessage implements JSONSerializable {
+
+    private static final String TYPE = "Subscribe";
+
+    private String user;
+    private long since;
+    private String token;
+
+    public SubscribeMessage(String user, long since, String token) {
+        this.user = user;
+        this.since = since;
+        this.token = token;
+    }
+
+    public SubscribeMessage() {
+        // used for deserialization
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    /**
+     * converts this message into a json object to send to the server
+     * includes the required type field, the username and the since cursor
+     */
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+        obj.put("type", TYPE);
+        obj.put("user", user);
+        obj.put("since", since);
+        if (token != null) {
+            obj.put("token", token);
+        }
+        return obj;
+    }
+
+    @Override
+    /**
+     * populates this message from a received json object
+     * validates the type field and extracts the username and since cursor
+     */
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        if (!(obj instanceof JSONObject)) {
+            throw new InvalidObjectException("expected json object");
+        }
+
+        JSONObject json = (JSONObject) obj;
+
+        Object type = json.get("type");
+        if (type == null || !TYPE.equals(type)) {
+            throw new InvalidObjectException("invalid or missing type field");
+        }
+
+        this.user = (String) json.get("user");
+        Object rawSince = json.get("since");
+        this.since = rawSince instanceof Number ? ((Number) rawSince).longValue() : 0;
+        this.token = (String) json.get("token");
+    }
+}
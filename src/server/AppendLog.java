@@ -0,0 +1,356 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Append-only JSON-lines log. Each record is written as a single line so a
+ * write costs O(record) instead of rewriting the whole data file, and the
+ * file is fsynced according to its SyncPolicy.
+ *
+ * In GROUP mode concurrent writers queue their records and a single flusher
+ * thread writes and fsyncs everything queued as one batch; append() returns
+ * only once the caller's batch is durable.
+ */
+public class AppendLog<T> implements Closeable {
+
+    /**
+     * How often appended records are forced to disk.
+     */
+    public static class SyncPolicy {
+        public enum Mode { ALWAYS, BATCH, INTERVAL, GROUP }
+
+        private final Mode mode;
+        private final int param;
+
+        private SyncPolicy(Mode mode, int param) {
+            this.mode = mode;
+            this.param = param;
+        }
+
+        // fsync after every record
+        public static SyncPolicy always() {
+            return new SyncPolicy(Mode.ALWAYS, 0);
+        }
+
+        // fsync once every n records
+        public static SyncPolicy batch(int records) {
+            return new SyncPolicy(Mode.BATCH, Math.max(1, records));
+        }
+
+        // fsync from a background timer every given number of milliseconds
+        public static SyncPolicy interval(int millis) {
+            return new SyncPolicy(Mode.INTERVAL, Math.max(1, millis));
+        }
+
+        // queue writers and fsync them together as one group commit
+        public static SyncPolicy group() {
+            return new SyncPolicy(Mode.GROUP, 0);
+        }
+
+        /**
+         * Parses a policy from its config name ("always", "batch", "interval" or "group").
+         */
+        public static SyncPolicy parse(String name, int param) {
+            if (name == null) return always();
+            switch (name) {
+                case "always":
+                    return always();
+                case "batch":
+                    return batch(param);
+                case "interval":
+                    return interval(param);
+                case "group":
+                    return group();
+                default:
+                    throw new IllegalArgumentException("unknown fsync policy: " + name);
+            }
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public int getParam() {
+            return param;
+        }
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File file;
+    private final SyncPolicy policy;
+    private final FileChannel channel;
+    private final ScheduledExecutorService syncTimer;
+    private int unsynced;
+
+    // group commit state, guarded by groupLock
+    private final Object groupLock = new Object();
+    private List<PendingWrite> groupQueue = new ArrayList<>();
+    private boolean closing;
+    private Thread flusher;
+
+    /**
+     * A serialized record waiting for the group flusher.
+     */
+    private static class PendingWrite {
+        final byte[] line;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(byte[] line) {
+            this.line = line;
+        }
+    }
+
+    public AppendLog(File file, SyncPolicy policy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        trimTornTail();
+        channel.position(channel.size());
+
+        if (policy.getMode() == SyncPolicy.Mode.INTERVAL) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-sync-" + file.getName());
+                t.setDaemon(true);
+                return t;
+            });
+            syncTimer.scheduleAtFixedRate(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    System.err.println("[!] Failed to sync " + file.getName() + ": " + e.getMessage());
+                }
+            }, policy.getParam(), policy.getParam(), TimeUnit.MILLISECONDS);
+        } else {
+            syncTimer = null;
+        }
+
+        if (policy.getMode() == SyncPolicy.Mode.GROUP) {
+            flusher = new Thread(this::flushLoop, "log-flusher-" + file.getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Writes one record as a JSON line and syncs it according to the policy.
+     */
+    public void append(T record) throws IOException {
+        byte[] line = (MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        if (policy.getMode() == SyncPolicy.Mode.GROUP) {
+            awaitGroupCommit(line);
+        } else {
+            appendDirect(line, 1);
+        }
+    }
+
+    /**
+     * Writes several records with one write and makes them durable together:
+     * one fsync under ALWAYS, one slot in a group commit under GROUP.
+     */
+    public void appendAll(List<T> records) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (T record : records) {
+            lines.append(MAPPER.writeValueAsString(record)).append('\n');
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (policy.getMode() == SyncPolicy.Mode.GROUP) {
+            awaitGroupCommit(bytes);
+        } else {
+            appendDirect(bytes, records.size());
+        }
+    }
+
+    private synchronized void appendDirect(byte[] line, int records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        unsynced += records;
+
+        if (policy.getMode() == SyncPolicy.Mode.ALWAYS
+                || (policy.getMode() == SyncPolicy.Mode.BATCH && unsynced >= policy.getParam())) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces any unsynced records to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0 && channel.isOpen()) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Queues a line for the flusher and blocks until its batch is on disk.
+     */
+    private void awaitGroupCommit(byte[] line) throws IOException {
+        PendingWrite write = new PendingWrite(line);
+        synchronized (groupLock) {
+            if (closing) {
+                throw new IOException(file.getName() + " is closed");
+            }
+            groupQueue.add(write);
+            groupLock.notifyAll();
+        }
+
+        try {
+            write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for group commit", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Flusher thread: drains everything queued, writes it with one gathering
+     * write, fsyncs once and acknowledges every writer in the batch.
+     */
+    private void flushLoop() {
+        while (true) {
+            List<PendingWrite> batch;
+            synchronized (groupLock) {
+                while (groupQueue.isEmpty() && !closing) {
+                    try {
+                        groupLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (groupQueue.isEmpty()) {
+                    return; // closing and fully drained
+                }
+                batch = groupQueue;
+                groupQueue = new ArrayList<>();
+            }
+
+            try {
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = ByteBuffer.wrap(batch.get(i).line);
+                }
+                synchronized (this) {
+                    long remaining = 0;
+                    for (ByteBuffer b : buffers) remaining += b.remaining();
+                    while (remaining > 0) {
+                        remaining -= channel.write(buffers);
+                    }
+                    channel.force(false);
+                }
+                for (PendingWrite write : batch) {
+                    write.done.complete(null);
+                }
+            } catch (IOException e) {
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdownNow();
+        }
+        if (flusher != null) {
+            synchronized (groupLock) {
+                closing = true;
+                groupLock.notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            sync();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads every record in a log file in order. A line that fails to parse
+     * at the end of the file is a write torn by a crash and is skipped.
+     */
+    public static <T> int replay(File file, TypeReference<T> type, Consumer<T> consumer) throws IOException {
+        if (!file.exists()) return 0;
+
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            String pending = null;
+            while ((line = reader.readLine()) != null) {
+                if (pending != null) {
+                    throw new IOException("corrupt record in " + file.getName() + " before end of log");
+                }
+                if (line.isEmpty()) continue;
+                try {
+                    consumer.accept(MAPPER.readValue(line, type));
+                    count++;
+                } catch (IOException e) {
+                    pending = line;
+                }
+            }
+            if (pending != null) {
+                System.err.println("[!] Skipping torn record at end of " + file.getName());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops a partial last line left behind by a crash so new records
+     * start on a fresh line.
+     */
+    private void trimTornTail() throws IOException {
+        long size = channel.size();
+        if (size == 0) return;
+
+        ByteBuffer one = ByteBuffer.allocate(1);
+        long pos = size - 1;
+        while (pos >= 0) {
+            one.clear();
+            channel.read(one, pos);
+            if (one.get(0) == '\n') break;
+            pos--;
+        }
+        if (pos + 1 < size) {
+            channel.truncate(pos + 1);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+
+/**
+ * Helpers for the compact binary snapshots that the board and the user
+ * database can write in place of their JSON files. Reading one is a single
+ * buffered pass with no JSON parsing or reflection.
+ *
+ * Every snapshot starts with a magic number, a format version and a kind
+ * tag, and is written to a temp file and moved into place so a crash never
+ * leaves half of one. Snapshots are always written in the current version;
+ * readers get the version of the file they opened so they can still read
+ * older ones (version 2 added the time of each post).
+ */
+public class BinarySnapshot {
+
+    // "BBS1"
+    private static final int MAGIC = 0x42425331;
+    public static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Writes the body of a snapshot.
+     */
+    public interface Body {
+        void write(Output out) throws IOException;
+    }
+
+    /**
+     * A DataInputStream that knows the format version of the snapshot it reads.
+     */
+    public static class Input extends DataInputStream {
+        private final int version;
+
+        private Input(InputStream in, int version) {
+            super(in);
+            this.version = version;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * A DataOutputStream that knows its byte offset past 2 GB, so snapshots
+     * can record where sections start.
+     */
+    public static class Output extends DataOutputStream {
+        private final Counter counter;
+
+        private Output(Counter counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        public long offset() {
+            return counter.count;
+        }
+    }
+
+    private static class Counter extends FilterOutputStream {
+        private long count;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given kind to target through a temp file.
+     */
+    public static void write(File target, String kind, Body body) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             Output out = new Output(new Counter(new BufferedOutputStream(file, BUFFER_SIZE)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(kind);
+            body.write(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens a snapshot for a sequential read and checks its header.
+     */
+    public static Input open(File file, String kind) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            int version = checkHeader(new DataInputStream(raw), kind);
+            return new Input(raw, version);
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads and checks the magic number, version and kind, and returns the version.
+     */
+    public static int checkHeader(DataInput in, String kind) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new InvalidObjectException("not a snapshot file");
+        }
+        int version = in.readInt();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new InvalidObjectException("unsupported snapshot version " + version);
+        }
+        String found = in.readUTF();
+        if (!found.equals(kind)) {
+            throw new InvalidObjectException("expected a " + kind + " snapshot, found " + found);
+        }
+        return version;
+    }
+
+    /**
+     * Picks the snapshot to load when a store may have a JSON and a binary
+     * one: whichever exists, or the newer if both do. Returns null if neither.
+     */
+    public static File pick(File json, File binary) {
+        if (!binary.exists()) return json.exists() ? json : null;
+        if (!json.exists()) return binary;
+        return binary.lastModified() >= json.lastModified() ? binary : json;
+    }
+
+    /**
+     * Writes a nullable string as an int length (-1 for null) and UTF-8
+     * bytes; unlike writeUTF it has no 64 KB limit.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a field that normally holds Base64 as its raw bytes, falling
+     * back to the text if it is not canonical Base64.
+     */
+    public static void writeBase64(DataOutput out, String s) throws IOException {
+        byte[] raw = null;
+        if (s != null) {
+            try {
+                raw = Base64.getDecoder().decode(s);
+                if (!Base64.getEncoder().encodeToString(raw).equals(s)) raw = null;
+            } catch (IllegalArgumentException e) {
+                raw = null;
+            }
+        }
+        if (raw == null) {
+            out.writeBoolean(false);
+            writeString(out, s);
+        } else {
+            out.writeBoolean(true);
+            out.writeInt(raw.length);
+            out.write(raw);
+        }
+    }
+
+    public static String readBase64(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return readString(in);
+        }
+        byte[] raw = new byte[in.readInt()];
+        in.readFully(raw);
+        return Base64.getEncoder().encodeToString(raw);
+    }
+}
@@ -1,73 +1,676 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
 import common.PostObject;
 
-public class BulletinBoard {
+/**
+ * Holds every post in memory, keyed by recipient. Each recipient has a
+ * Mailbox with its own lock, so reads and writes for different users never
+ * contend.
+ *
+ * New posts are appended to a write-ahead log (board.json.log.N) instead of
+ * rewriting board.json each time. A background job periodically compacts the
+ * log into a new board.json snapshot; the snapshot records which log
+ * generation it covers so startup knows which logs still need replaying.
+ *
+ * Writers hold the shared side of logLock while appending so several posts
+ * can wait on the same group commit; compaction takes the exclusive side to
+ * switch log generations without losing an in-flight post.
+ *
+ * Every post gets a board-wide sequence id. Because posts can finish their
+ * group commit out of order, readers only see posts up to the visible
+ * watermark: the highest id below which nothing is still in flight. That
+ * keeps since-cursors from skipping a post that was committed late.
+ *
+ * With a segment size set, post bodies go to memory-mapped segment files
+ * (see SegmentStore) instead of the heap and the JSON snapshot and log are
+ * not used; each user keeps only a PostIndex of where their posts are, and
+ * getPosts reads the bodies from the mapping on demand. Startup scans the
+ * segment headers instead of parsing the board. An existing board.json is
+ * imported into the segments the first time.
+ *
+ * Snapshots can be written in a compact binary form (board.json.snap)
+ * instead of JSON; loading picks whichever snapshot is newer. The binary
+ * snapshot groups posts by user and ends with a directory of where each
+ * user's block starts, so with lazy loading startup reads only the
+ * directory and a mailbox is hydrated the first time it is asked for (or by
+ * a background thread, whichever comes first). In segment mode the
+ * checkpoint is instead a binary copy of the per-user indexes
+ * (board.json.idx), so startup only scans records written after it.
+ *
+ * Listeners registered with subscribe are told about each new post for
+ * their user as soon as it is stored, on the thread that stored it.
+ *
+ * Posts are deleted when their recipient acknowledges them (see
+ * acknowledge), when they are older than the post TTL, or when a mailbox
+ * grows past its cap. Acknowledgements are logged to board.json.acks and
+ * reapplied on every load, so nothing acknowledged comes back after a
+ * restart; the TTL and cap are simply applied again. Removal only drops
+ * posts from memory; the compactor reclaims the space, by writing a
+ * snapshot without them or, in segment mode, by deleting segments whose
+ * records are all gone and moving the few live records out of nearly empty
+ * ones.
+ */
+public class BulletinBoard implements Closeable {
+    // used when no compaction interval is given
+    private static final int DEFAULT_COMPACT_INTERVAL = 300;
+
+    private static final TypeReference<PostObject> POST_TYPE = new TypeReference<PostObject>() {};
+    private static final TypeReference<Map<String, Object>> ACK_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    // segments with less than this fraction of live bytes are emptied by the compactor
+    private static final int SPARSE_SEGMENT_DIVISOR = 4;
+
+    private static final LatencyHistogram PERSIST_TIME = Metrics.histogram("bbs_board_persist_seconds",
+        "Time to make one post or batch durable in the log or segments.");
+    private static final LatencyHistogram COMPACT_TIME = Metrics.histogram("bbs_board_compact_seconds",
+        "Time one board compaction or checkpoint took.");
+    private static final Metrics.Counter POSTS_REMOVED = Metrics.counter("bbs_board_posts_removed_total",
+        "Posts deleted by acknowledgement, TTL or mailbox cap.");
+
     private final File boardFile;
-    private final Map<String, List<PostObject>> userPosts;
+    private final Map<String, Mailbox> userPosts;
+    private final Map<String, PostIndex> userIndex;
+    private final SegmentStore segments;
+    private final AppendLog.SyncPolicy syncPolicy;
+    private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+
+    // binary snapshot files and whether snapshots are written in binary
+    private final File snapshotFile;
+    private final File indexFile;
+    private final boolean binarySnapshot;
+
+    // lazy loading: user -> offset of their block in the snapshot still to be read
+    private final Map<String, long[]> pending = new ConcurrentHashMap<>();
+    private File pendingSource;
+    private int pendingVersion;
+
+    // acknowledged posts: user -> highest seq deleted, logged to board.json.acks
+    private final Map<String, Long> acked = new ConcurrentHashMap<>();
+    private final File ackFile;
+    private final Object ackLock = new Object();
+    private AppendLog<Map<String, Object>> ackLog;
+    private int ackRecords;
+
+    // retention limits; 0 turns either off
+    private final long postTtlMillis;
+    private final int mailboxCap;
+
+    // posts removed since the last compaction, which then rewrites the snapshot or checkpoint
+    private final AtomicInteger removed = new AtomicInteger();
+
+    // segments emptied by the last compaction, deleted by the next one
+    private final List<Integer> retired = new ArrayList<>();
+
+    private AppendLog<PostObject> log;
+    private long logGeneration;
+    private final AtomicInteger logRecords = new AtomicInteger();
+    private final AtomicLong lastSeq = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private final Map<String, List<Consumer<PostObject>>> subscribers = new ConcurrentHashMap<>();
+
+    // stored posts not yet passed to subscribers because a lower seq is still in flight, guarded by inFlight
+    private final TreeMap<Long, PostObject> unannounced = new TreeMap<>();
+
+    // held while subscribers are called so they see posts in seq order
+    private final Object announceLock = new Object();
+    private ScheduledExecutorService compactor;
+    private Thread hydrator;
+
+    /**
+     * How a board stores and keeps its posts. Every setting has a default,
+     * so callers only set what they change:
+     *
+     * <pre>
+     * new BulletinBoard("board.json", new BulletinBoard.Options()
+     *     .syncPolicy(AppendLog.SyncPolicy.group())
+     *     .segmentSize(64 * 1024 * 1024));
+     * </pre>
+     */
+    public static class Options {
+        private AppendLog.SyncPolicy syncPolicy = AppendLog.SyncPolicy.always();
+        private int compactIntervalSeconds = DEFAULT_COMPACT_INTERVAL;
+        private int segmentSize;
+        private boolean binarySnapshot;
+        private boolean lazyLoad;
+        private int postTtlSeconds;
+        private int mailboxCap;
+
+        /**
+         * How often the post log or segments are fsynced; always by default.
+         */
+        public Options syncPolicy(AppendLog.SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * Seconds between compactions (checkpoints in segment mode), 0 disables.
+         */
+        public Options compactInterval(int seconds) {
+            this.compactIntervalSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Bytes per mapped segment file, or 0 (the default) to keep posts on
+         * the heap with a snapshot and log.
+         */
+        public Options segmentSize(int bytes) {
+            this.segmentSize = bytes;
+            return this;
+        }
+
+        /**
+         * Write snapshots in the binary form instead of JSON.
+         */
+        public Options binarySnapshot(boolean binarySnapshot) {
+            this.binarySnapshot = binarySnapshot;
+            return this;
+        }
 
-    public BulletinBoard(String filePath) {
+        /**
+         * Load mailboxes from a binary snapshot on first access instead of
+         * before the constructor returns.
+         */
+        public Options lazyLoad(boolean lazyLoad) {
+            this.lazyLoad = lazyLoad;
+            return this;
+        }
+
+        /**
+         * Seconds a post is kept, 0 (the default) keeps it until acknowledged.
+         */
+        public Options postTtl(int seconds) {
+            this.postTtlSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Most posts kept per user, oldest dropped first; 0 (the default) for no limit.
+         */
+        public Options mailboxCap(int posts) {
+            this.mailboxCap = posts;
+            return this;
+        }
+    }
+
+    /**
+     * @param filePath path of the board snapshot file
+     * @param options storage, compaction and retention settings
+     */
+    public BulletinBoard(String filePath, Options options) throws IOException {
         this.boardFile = new File(filePath);
-        this.userPosts = new HashMap<>();
-        loadBulletinBoard();
+        this.snapshotFile = new File(filePath + ".snap");
+        this.indexFile = new File(filePath + ".idx");
+        this.ackFile = new File(filePath + ".acks");
+        this.binarySnapshot = options.binarySnapshot;
+        this.userPosts = new ConcurrentHashMap<>();
+        this.userIndex = new ConcurrentHashMap<>();
+        this.syncPolicy = options.syncPolicy;
+        this.postTtlMillis = options.postTtlSeconds * 1000L;
+        this.mailboxCap = options.mailboxCap;
+
+        loadAcks();
+        if (options.segmentSize > 0) {
+            segments = new SegmentStore(boardFile, options.segmentSize, syncPolicy);
+            loadSegments();
+        } else {
+            segments = null;
+            loadBulletinBoard(options.lazyLoad);
+        }
+
+        int dropped = sweep();
+        if (dropped > 0) {
+            System.out.println("[+] Dropped " + dropped + " acknowledged or expired posts.");
+        }
+
+        Metrics.gauge("bbs_board_posts_in_flight", "Posts waiting for their write to become durable.", inFlight::size);
+        Metrics.gauge("bbs_board_log_records", "Posts written since the last compaction.", logRecords::get);
+        Metrics.gauge("bbs_board_subscribers", "Users with a subscription open.", subscribers::size);
+
+        int compactIntervalSeconds = options.compactIntervalSeconds;
+        if (compactIntervalSeconds > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "board-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    System.err.println("[!] Failed to compact bulletin board: " + e.getMessage());
+                }
+            }, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+        }
     }
 
     /**
-     * Loads the posts from the board file using Jackson.
+     * Replays board.json.acks into the acknowledged map and opens it for appending.
      */
-    private void loadBulletinBoard() {
-        if (!boardFile.exists()) {
-            saveBulletinBoard(); // create empty file if missing
-            return;
+    private void loadAcks() throws IOException {
+        ackRecords = AppendLog.replay(ackFile, ACK_TYPE, record -> {
+            Object user = record.get("user");
+            Object upTo = record.get("upto");
+            if (user instanceof String && upTo instanceof Number) {
+                acked.merge((String) user, ((Number) upTo).longValue(), Math::max);
+            }
+        });
+        ackLog = new AppendLog<>(ackFile, syncPolicy);
+    }
+
+    /**
+     * Loads the newest snapshot, then replays any logs written since it.
+     */
+    private void loadBulletinBoard(boolean lazy) throws IOException {
+        loadBulletinBoard(this::addToMemory, lazy);
+        log = new AppendLog<>(logFile(logGeneration), syncPolicy);
+
+        if (!pending.isEmpty()) {
+            hydrator = new Thread(this::hydrateAll, "board-hydrator");
+            hydrator.setDaemon(true);
+            hydrator.start();
+        }
+    }
+
+    /**
+     * Reads the snapshot and replays the logs after it, passing every post to
+     * sink. With lazy set, a binary snapshot's mailboxes are only registered
+     * as pending.
+     */
+    private void loadBulletinBoard(Consumer<PostObject> sink, boolean lazy) throws IOException {
+        File snapshot = BinarySnapshot.pick(boardFile, snapshotFile);
+        if (snapshot == null) {
+            saveBulletinBoard(new ArrayList<>(), 0); // create empty file if missing
+            snapshot = binarySnapshot ? snapshotFile : boardFile;
         }
 
+        long start = System.currentTimeMillis();
         try {
-            ObjectMapper mapper = new ObjectMapper();
+            if (snapshot == boardFile) {
+                int loaded = readJsonSnapshot(sink);
+                System.out.println("[+] Loaded " + loaded + " posts from bulletin board.");
+            } else if (lazy) {
+                readSnapshotDirectory();
+                System.out.println("[+] Found " + pending.size() + " mailboxes in " + snapshotFile.getName()
+                    + " in " + (System.currentTimeMillis() - start) + " ms; loading them on demand.");
+            } else {
+                int loaded = readSnapshot(sink);
+                System.out.println("[+] Loaded " + loaded + " posts from " + snapshotFile.getName()
+                    + " in " + (System.currentTimeMillis() - start) + " ms.");
+            }
+        } catch (Exception e) {
+            System.err.println("[!] Failed to load bulletin board: " + e.getMessage());
+        }
+
+        // replay logs the snapshot does not cover, oldest first
+        long latest = logGeneration;
+        for (long generation : existingLogGenerations()) {
+            File file = logFile(generation);
+            if (generation < logGeneration) {
+                Files.deleteIfExists(file.toPath()); // already folded into the snapshot
+                continue;
+            }
+            int replayed = AppendLog.replay(file, POST_TYPE, sink);
+            System.out.println("[+] Replayed " + replayed + " posts from " + file.getName());
+            logRecords.addAndGet(replayed);
+            latest = Math.max(latest, generation);
+        }
+
+        logGeneration = latest;
+    }
 
-            // read file into { "posts": [ ... ] }
-            Map<String, List<PostObject>> root = mapper.readValue(
-                boardFile, new TypeReference<Map<String, List<PostObject>>>() {}
-            );
+    /**
+     * Reads board.json with Jackson: { "posts": [ ... ], "log-generation": n }.
+     */
+    private int readJsonSnapshot(Consumer<PostObject> sink) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode root = mapper.readTree(boardFile);
+
+        List<PostObject> posts = mapper.convertValue(
+            root.get("posts"), new TypeReference<List<PostObject>>() {}
+        );
+        if (posts != null) {
+            for (PostObject post : posts) {
+                sink.accept(post);
+            }
+        }
+        logGeneration = root.has("log-generation") ? root.get("log-generation").asLong() : 0;
+        return posts == null ? 0 : posts.size();
+    }
 
-            List<PostObject> posts = root.get("posts");
-            if (posts != null) {
+    /**
+     * Reads every block of the binary snapshot in one buffered pass.
+     *
+     * Layout: log generation, last seq, user count, then per user the name,
+     * post count and posts (seq, time, message, wrappedkey, iv, scheme),
+     * then the directory of (user, block offset) and finally the directory's
+     * offset. Version 1 snapshots have no time.
+     */
+    private int readSnapshot(Consumer<PostObject> sink) throws IOException {
+        int loaded = 0;
+        try (BinarySnapshot.Input in = BinarySnapshot.open(snapshotFile, "board")) {
+            logGeneration = in.readLong();
+            lastSeq.accumulateAndGet(in.readLong(), Math::max);
+            int users = in.readInt();
+            for (int i = 0; i < users; i++) {
+                List<PostObject> posts = readBlock(in, in.getVersion());
                 for (PostObject post : posts) {
-                    addToMemory(post);
+                    sink.accept(post);
                 }
+                loaded += posts.size();
             }
+        }
+        return loaded;
+    }
 
-            System.out.println("[+] Loaded " + posts.size() + " posts from bulletin board.");
-        } catch (Exception e) {
-            System.err.println("[!] Failed to load bulletin board: " + e.getMessage());
+    /**
+     * Reads only the header and directory of the binary snapshot and marks
+     * every mailbox in it as pending.
+     */
+    private void readSnapshotDirectory() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "r")) {
+            pendingVersion = BinarySnapshot.checkHeader(file, "board");
+            logGeneration = file.readLong();
+            lastSeq.accumulateAndGet(file.readLong(), Math::max);
+            int users = file.readInt();
+
+            file.seek(file.length() - 8);
+            long directory = file.readLong();
+            FileChannel channel = file.getChannel().position(directory);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            for (int i = 0; i < users; i++) {
+                String user = BinarySnapshot.readString(in);
+                pending.put(user, new long[] {in.readLong()});
+            }
         }
+        pendingSource = snapshotFile;
     }
 
     /**
-     * Saves all posts to the board file using Jackson formatting.
+     * Reads one user's block: name, post count, posts. Posts from a version
+     * 1 snapshot are given the current time.
      */
-    private boolean saveBulletinBoard() {
+    private static List<PostObject> readBlock(DataInputStream in, int version) throws IOException {
+        String user = BinarySnapshot.readString(in);
+        int count = in.readInt();
+        long now = System.currentTimeMillis();
+        List<PostObject> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long seq = in.readLong();
+            long time = version >= 2 ? in.readLong() : now;
+            PostObject post = new PostObject(user,
+                BinarySnapshot.readBase64(in), BinarySnapshot.readBase64(in), BinarySnapshot.readBase64(in));
+            post.setSeq(seq);
+            post.setTime(time);
+            post.setScheme(BinarySnapshot.readString(in));
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    /**
+     * Loads a pending mailbox from the snapshot. Other readers of the same
+     * mailbox wait until it is done; posts that arrived since startup are
+     * merged in sequence order, and acknowledged or expired posts dropped.
+     */
+    private void hydrate(String user) {
+        long[] block = pending.get(user);
+        if (block == null) return;
+
+        synchronized (block) {
+            if (pending.get(user) != block) return; // another thread got there first
+            try (FileChannel channel = FileChannel.open(pendingSource.toPath())) {
+                channel.position(block[0]);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+                Mailbox mailbox = userPosts.computeIfAbsent(user, k -> new Mailbox());
+                mailbox.addAll(readBlock(in, pendingVersion));
+                countRemoved(retain(user, mailbox, System.currentTimeMillis()));
+                pending.remove(user);
+            } catch (IOException e) {
+                System.err.println("[!] Failed to load mailbox for " + user + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Loads every pending mailbox; run in the background after a lazy start
+     * and before a compaction, which needs the whole board.
+     */
+    private void hydrateAll() {
+        if (pending.isEmpty()) return;
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (String user : new ArrayList<>(pending.keySet())) {
+            hydrate(user);
+            count++;
+        }
+        System.out.println("[+] Loaded " + count + " mailboxes in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Writes the binary snapshot. Posts arrive grouped by user, as copied
+     * mailbox by mailbox.
+     */
+    private void writeSnapshot(List<PostObject> allPosts, long coveredGeneration) throws IOException {
+        BinarySnapshot.write(snapshotFile, "board", out -> {
+            // block boundaries: index of each user's first post
+            List<Integer> starts = new ArrayList<>();
+            for (int i = 0; i < allPosts.size(); i++) {
+                if (i == 0 || !allPosts.get(i).getUser().equals(allPosts.get(i - 1).getUser())) {
+                    starts.add(i);
+                }
+            }
+            starts.add(allPosts.size());
+
+            out.writeLong(coveredGeneration);
+            out.writeLong(lastSeq.get());
+            out.writeInt(starts.size() - 1);
+
+            long[] offsets = new long[starts.size() - 1];
+            for (int b = 0; b < offsets.length; b++) {
+                offsets[b] = out.offset();
+                int from = starts.get(b);
+                int to = starts.get(b + 1);
+                BinarySnapshot.writeString(out, allPosts.get(from).getUser());
+                out.writeInt(to - from);
+                for (int i = from; i < to; i++) {
+                    PostObject post = allPosts.get(i);
+                    out.writeLong(post.getSeq());
+                    out.writeLong(post.getTime());
+                    BinarySnapshot.writeBase64(out, post.getMessage());
+                    BinarySnapshot.writeBase64(out, post.getWrappedKey());
+                    BinarySnapshot.writeBase64(out, post.getIv());
+                    BinarySnapshot.writeString(out, post.getScheme());
+                }
+            }
+
+            long directory = out.offset();
+            for (int b = 0; b < offsets.length; b++) {
+                BinarySnapshot.writeString(out, allPosts.get(starts.get(b)).getUser());
+                out.writeLong(offsets[b]);
+            }
+            out.writeLong(directory);
+        });
+    }
+
+    /**
+     * Rebuilds the per-user indexes: from the index checkpoint plus the
+     * records written after it if there is one, otherwise from every segment
+     * header. board.json and its logs are imported first if the segments
+     * are new.
+     *
+     * Headers carry no time, so with a post TTL set the body of each record
+     * after the checkpoint is read for it; otherwise those posts count as
+     * stored now.
+     */
+    private void loadSegments() throws IOException {
+        long start = System.currentTimeMillis();
+        long from = readIndexSnapshot(start);
+        int count = segments.scan((seq, user, ref, length) -> {
+            lastSeq.accumulateAndGet(seq, Math::max);
+            long time = postTtlMillis > 0 ? storedTime(ref, length, start) : start;
+            userIndex.computeIfAbsent(user, k -> new PostIndex()).add(seq, ref, length, time);
+        }, from);
+        System.out.println("[+] Indexed " + count + " posts from segments in "
+            + (System.currentTimeMillis() - start) + " ms.");
+
+        if (from == 0 && count == 0 && BinarySnapshot.pick(boardFile, snapshotFile) != null) {
+            List<PostObject> imported = new ArrayList<>();
+            loadBulletinBoard(imported::add, false);
+            for (PostObject post : imported) {
+                if (post.getSeq() == 0) {
+                    post.setSeq(lastSeq.incrementAndGet());
+                } else {
+                    lastSeq.accumulateAndGet(post.getSeq(), Math::max);
+                }
+                if (post.getTime() == 0) {
+                    post.setTime(start);
+                }
+                addToIndex(post, segments.append(post));
+            }
+            segments.sync();
+            System.out.println("[+] Imported " + imported.size() + " posts from " + boardFile.getName() + " into segments.");
+        }
+    }
+
+    /**
+     * The time stored in a segment record, or fallback if it has none.
+     */
+    private long storedTime(long ref, int length, long fallback) {
         try {
-            // collect all posts into a flat list
-            List<PostObject> allPosts = new ArrayList<>();
-            for (List<PostObject> posts : userPosts.values()) {
-                allPosts.addAll(posts);
+            long time = segments.read(ref, length).getTime();
+            return time == 0 ? fallback : time;
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Loads the index checkpoint, if any, and returns the segment position
+     * it covers (0 to scan everything). A checkpoint that does not match the
+     * segments on disk is ignored.
+     */
+    private long readIndexSnapshot(long loadTime) {
+        if (!indexFile.exists()) return 0;
+
+        try (BinarySnapshot.Input in = BinarySnapshot.open(indexFile, "board-index")) {
+            long end = in.readLong();
+            long seq = in.readLong();
+            if (!segments.hasPosition(end)) {
+                System.err.println("[!] Ignoring " + indexFile.getName() + ": it does not match the segments");
+                return 0;
+            }
+
+            int users = in.readInt();
+            Map<String, PostIndex> loaded = new HashMap<>();
+            for (int i = 0; i < users; i++) {
+                loaded.put(BinarySnapshot.readString(in), PostIndex.readFrom(in, in.getVersion(), loadTime));
+            }
+            userIndex.putAll(loaded);
+            lastSeq.accumulateAndGet(seq, Math::max);
+            return end;
+        } catch (IOException e) {
+            System.err.println("[!] Ignoring " + indexFile.getName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Checkpoints the per-user indexes so the next start only scans what
+     * is written after this point. Appends pause just long enough to sync
+     * the segments and copy the indexes.
+     *
+     * @param force write it even if no post was added or removed
+     */
+    private void writeIndexSnapshot(boolean force) throws IOException {
+        Map<String, PostIndex> copy = new HashMap<>();
+        long end;
+        long seq;
+
+        logLock.writeLock().lock();
+        try {
+            if (!force && logRecords.get() == 0 && removed.get() == 0 && indexFile.exists()) return;
+
+            // everything the checkpoint points at must be on disk first
+            segments.sync();
+            end = segments.endRef();
+            seq = lastSeq.get();
+            for (Map.Entry<String, PostIndex> entry : userIndex.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+            logRecords.set(0);
+            removed.set(0);
+        } finally {
+            logLock.writeLock().unlock();
+        }
+
+        BinarySnapshot.write(indexFile, "board-index", out -> {
+            out.writeLong(end);
+            out.writeLong(seq);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, PostIndex> entry : copy.entrySet()) {
+                BinarySnapshot.writeString(out, entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        });
+    }
+
+    /**
+     * Writes a snapshot of the given posts to the board file using Jackson
+     * formatting, or to the binary snapshot if configured. The file is
+     * written to a temp file and moved into place so a crash never leaves a
+     * half-written snapshot; the snapshot in the other format is then
+     * removed so it can never be mistaken for the newer one.
+     */
+    private boolean saveBulletinBoard(List<PostObject> allPosts, long coveredGeneration) {
+        try {
+            if (binarySnapshot) {
+                writeSnapshot(allPosts, coveredGeneration);
+                Files.deleteIfExists(boardFile.toPath());
+                return true;
             }
 
             // wrap in a map for { "posts": [...] }
             Map<String, Object> wrapper = new HashMap<>();
             wrapper.put("posts", allPosts);
+            wrapper.put("log-generation", coveredGeneration);
 
+            File tmp = new File(boardFile.getPath() + ".tmp");
             ObjectMapper mapper = new ObjectMapper();
             ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
-            writer.writeValue(boardFile, wrapper);
+            writer.writeValue(tmp, wrapper);
+            Files.move(tmp.toPath(), boardFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(snapshotFile.toPath());
 
             return true;
         } catch (IOException e) {
@@ -77,25 +680,588 @@ public class BulletinBoard {
     }
 
     /**
-     * Adds a post to the in-memory map and writes to disk.
+     * Stops the compactor, waits for background loading to finish and
+     * closes the logs and segments, syncing whatever they still buffer. The
+     * board must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            // cancels the next run; one already running is allowed to finish
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (hydrator != null) {
+            try {
+                hydrator.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // the monitor keeps out a compaction started by hand, the write lock any writer
+        synchronized (this) {
+            logLock.writeLock().lock();
+            try {
+                if (log != null) {
+                    log.close();
+                }
+                if (segments != null) {
+                    segments.close();
+                }
+            } finally {
+                logLock.writeLock().unlock();
+            }
+            synchronized (ackLock) {
+                ackLog.close();
+            }
+        }
+    }
+
+    /**
+     * Folds the current log into a fresh snapshot. Posts keep flowing into a
+     * new log generation while the snapshot is written. Expired posts and
+     * posts over a mailbox cap are dropped first, so the snapshot no longer
+     * holds them; in segment mode their segments are reclaimed instead.
+     */
+    public synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        try {
+            compactBoard();
+        } finally {
+            COMPACT_TIME.recordSince(start);
+        }
+    }
+
+    private void compactBoard() throws IOException {
+        sweep();
+        compactAcks();
+
+        if (segments != null) {
+            // the checkpoint written last time no longer refers to these
+            for (int number : retired) {
+                try {
+                    segments.delete(number);
+                } catch (IOException e) {
+                    System.err.println("[!] Failed to delete post segment " + number + ": " + e.getMessage());
+                }
+            }
+            retired.clear();
+
+            List<Integer> emptied = reclaimSegments();
+            writeIndexSnapshot(!emptied.isEmpty());
+            retired.addAll(emptied);
+            return;
+        }
+
+        // the snapshot must hold every mailbox, including ones not yet loaded
+        hydrateAll();
+
+        List<PostObject> allPosts = new ArrayList<>();
+        AppendLog<PostObject> oldLog;
+        long newGeneration;
+
+        logLock.writeLock().lock();
+        try {
+            // nothing added or removed since the last snapshot
+            if (logRecords.get() == 0 && removed.get() == 0) return;
+
+            // collect all posts into a flat list; no writer is active while we hold the write lock
+            for (Mailbox mailbox : userPosts.values()) {
+                mailbox.copyTo(allPosts);
+            }
+            logRecords.set(0);
+            removed.set(0);
+
+            // switch writers to the next generation
+            oldLog = log;
+            newGeneration = logGeneration + 1;
+            log = new AppendLog<>(logFile(newGeneration), syncPolicy);
+            logGeneration = newGeneration;
+        } finally {
+            logLock.writeLock().unlock();
+        }
+
+        oldLog.close();
+        if (saveBulletinBoard(allPosts, newGeneration)) {
+            for (long generation : existingLogGenerations()) {
+                if (generation < newGeneration) {
+                    Files.deleteIfExists(logFile(generation).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds segments the board no longer needs. Live bytes per segment are
+     * counted from the indexes; a segment below a quarter full has its live
+     * records copied to the current segment and the indexes pointed at the
+     * copies, after which it holds nothing anyone refers to. The caller
+     * deletes the returned segments one compaction later, once a checkpoint
+     * without them is on disk and readers holding an old ref are done.
+     *
+     * A crash before then leaves both copies of a record; the later one
+     * replaces the earlier when the segments are scanned again.
+     */
+    private List<Integer> reclaimSegments() throws IOException {
+        int current = segments.currentSegment();
+        long[] live = new long[current];
+        for (PostIndex index : userIndex.values()) {
+            index.forEach((seq, ref, length) -> {
+                int number = SegmentStore.segmentOf(ref);
+                if (number < current) {
+                    live[number] += length;
+                }
+            });
+        }
+
+        List<Integer> sparse = new ArrayList<>();
+        for (int number = 0; number < current; number++) {
+            if (segments.hasSegment(number) && live[number] < segments.segmentSize() / SPARSE_SEGMENT_DIVISOR) {
+                sparse.add(number);
+            }
+        }
+        if (sparse.isEmpty()) return sparse;
+
+        int moved = 0;
+        for (PostIndex index : userIndex.values()) {
+            List<long[]> entries = new ArrayList<>();
+            index.forEach((seq, ref, length) -> {
+                if (sparse.contains(SegmentStore.segmentOf(ref))) {
+                    entries.add(new long[] {seq, ref, length});
+                }
+            });
+            if (entries.isEmpty()) continue;
+
+            List<PostObject> posts = new ArrayList<>(entries.size());
+            for (long[] entry : entries) {
+                posts.add(segments.read(entry[1], (int) entry[2]));
+            }
+
+            logLock.readLock().lock();
+            try {
+                long[] copies = segments.appendAll(posts);
+                for (int i = 0; i < copies.length; i++) {
+                    index.relocate(entries.get(i)[0], entries.get(i)[1], copies[i], segments.lengthOf(copies[i]));
+                }
+            } finally {
+                logLock.readLock().unlock();
+            }
+            moved += entries.size();
+        }
+
+        System.out.println("[+] Reclaiming " + sparse.size() + " post segments; moved " + moved + " live posts.");
+        return sparse;
+    }
+
+    /**
+     * Drops acknowledged and expired posts and trims mailboxes over the cap.
+     *
+     * @return the number of posts removed
+     */
+    private int sweep() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        if (segments != null) {
+            for (Map.Entry<String, PostIndex> entry : userIndex.entrySet()) {
+                count += retain(entry.getKey(), entry.getValue(), now);
+            }
+        } else {
+            for (Map.Entry<String, Mailbox> entry : userPosts.entrySet()) {
+                count += retain(entry.getKey(), entry.getValue(), now);
+            }
+        }
+        countRemoved(count);
+        return count;
+    }
+
+    /**
+     * Counts removed posts towards the next compaction and the metrics.
+     */
+    private void countRemoved(int count) {
+        removed.addAndGet(count);
+        POSTS_REMOVED.add(count);
+    }
+
+    /**
+     * Applies the acknowledgement, TTL and cap to one mailbox.
+     */
+    private int retain(String user, Mailbox mailbox, long now) {
+        int count = 0;
+        Long upTo = acked.get(user);
+        if (upTo != null) {
+            count += mailbox.removeThrough(upTo);
+        }
+        if (postTtlMillis > 0) {
+            count += mailbox.removeOlderThan(now - postTtlMillis);
+        }
+        if (mailboxCap > 0) {
+            count += mailbox.trimTo(mailboxCap);
+        }
+        return count;
+    }
+
+    /**
+     * Applies the acknowledgement, TTL and cap to one index.
+     */
+    private int retain(String user, PostIndex index, long now) {
+        int count = 0;
+        Long upTo = acked.get(user);
+        if (upTo != null) {
+            count += index.removeThrough(upTo);
+        }
+        if (postTtlMillis > 0) {
+            count += index.removeOlderThan(now - postTtlMillis);
+        }
+        if (mailboxCap > 0) {
+            count += index.trimTo(mailboxCap);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes a user's posts up to and including upTo once the client has
+     * read them. The acknowledgement is logged before anything is removed,
+     * so the posts stay gone across a restart even before the next
+     * compaction. Posts above the visible watermark cannot have been read
+     * yet and are kept.
+     *
+     * @return the number of posts removed, or -1 if the acknowledgement could not be saved
+     */
+    public int acknowledge(String user, long upTo) {
+        if (segments == null) {
+            hydrate(user);
+        }
+        long through = Math.min(upTo, visibleWatermark());
+        synchronized (ackLock) {
+            Long previous = acked.get(user);
+            if (previous != null && previous >= through) return 0;
+
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("user", user);
+            record.put("upto", through);
+            try {
+                ackLog.append(record);
+            } catch (IOException e) {
+                System.err.println("[!] Failed to save acknowledgement: " + e.getMessage());
+                return -1;
+            }
+            ackRecords++;
+            acked.put(user, through);
+        }
+
+        int count = 0;
+        if (segments != null) {
+            PostIndex index = userIndex.get(user);
+            if (index != null) {
+                count = index.removeThrough(through);
+            }
+        } else {
+            Mailbox mailbox = userPosts.get(user);
+            if (mailbox != null) {
+                count = mailbox.removeThrough(through);
+            }
+        }
+        countRemoved(count);
+        return count;
+    }
+
+    /**
+     * Rewrites board.json.acks with one record per user once it has grown
+     * past that.
+     */
+    private void compactAcks() throws IOException {
+        synchronized (ackLock) {
+            if (ackRecords <= acked.size()) return;
+
+            List<Map<String, Object>> records = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : acked.entrySet()) {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("user", entry.getKey());
+                record.put("upto", entry.getValue());
+                records.add(record);
+            }
+
+            File tmp = new File(ackFile.getPath() + ".tmp");
+            Files.deleteIfExists(tmp.toPath());
+            try (AppendLog<Map<String, Object>> rewritten = new AppendLog<>(tmp, AppendLog.SyncPolicy.always())) {
+                rewritten.appendAll(records);
+            }
+
+            ackLog.close();
+            try {
+                Files.move(tmp.toPath(), ackFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ackRecords = records.size();
+            } finally {
+                ackLog = new AppendLog<>(ackFile, syncPolicy);
+            }
+        }
+    }
+
+    /**
+     * Appends a post to the log and, once it is durable, adds it to the
+     * in-memory map. Concurrent callers share one group commit.
      */
     public boolean addPost(PostObject post) {
-        addToMemory(post);
-        return saveBulletinBoard();
+        logLock.readLock().lock();
+        long seq;
+        synchronized (inFlight) {
+            seq = lastSeq.incrementAndGet();
+            inFlight.add(seq);
+        }
+        boolean stored = false;
+        try {
+            post.setSeq(seq);
+            post.setTime(System.currentTimeMillis());
+            long start = System.nanoTime();
+            if (segments != null) {
+                long ref = segments.append(post);
+                PERSIST_TIME.recordSince(start);
+                addToIndex(post, ref);
+            } else {
+                log.append(post);
+                PERSIST_TIME.recordSince(start);
+                addToMemory(post);
+            }
+            logRecords.incrementAndGet();
+            stored = true;
+            return true;
+        } catch (IOException e) {
+            System.err.println("[!] Failed to save post: " + e.getMessage());
+            return false;
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(seq);
+                if (stored) {
+                    unannounced.put(seq, post);
+                }
+            }
+            logLock.readLock().unlock();
+            announce();
+        }
+    }
+
+    /**
+     * Stores several posts as one durable write: a single log append (or
+     * segment append) and a single sync or group commit for all of them.
+     * If the write fails, none of the posts is added.
+     */
+    public boolean addPosts(List<PostObject> posts) {
+        if (posts.isEmpty()) return true;
+
+        logLock.readLock().lock();
+        long first;
+        synchronized (inFlight) {
+            first = lastSeq.get() + 1;
+            lastSeq.addAndGet(posts.size());
+            for (int i = 0; i < posts.size(); i++) {
+                inFlight.add(first + i);
+            }
+        }
+        boolean stored = false;
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < posts.size(); i++) {
+                posts.get(i).setSeq(first + i);
+                posts.get(i).setTime(now);
+            }
+            long start = System.nanoTime();
+            if (segments != null) {
+                long[] refs = segments.appendAll(posts);
+                PERSIST_TIME.recordSince(start);
+                for (int i = 0; i < refs.length; i++) {
+                    addToIndex(posts.get(i), refs[i]);
+                }
+            } else {
+                log.appendAll(posts);
+                PERSIST_TIME.recordSince(start);
+                for (PostObject post : posts) {
+                    addToMemory(post);
+                }
+            }
+            logRecords.addAndGet(posts.size());
+            stored = true;
+            return true;
+        } catch (IOException e) {
+            System.err.println("[!] Failed to save " + posts.size() + " posts: " + e.getMessage());
+            return false;
+        } finally {
+            synchronized (inFlight) {
+                for (int i = 0; i < posts.size(); i++) {
+                    inFlight.remove(first + i);
+                    if (stored) {
+                        unannounced.put(first + i, posts.get(i));
+                    }
+                }
+            }
+            logLock.readLock().unlock();
+            announce();
+        }
+    }
+
+    /**
+     * Calls listener with every post stored for user from now on, in seq
+     * order and only once the post is below the visible watermark, so a
+     * listener never sees a post that getPosts would not return yet. The
+     * listener runs on a posting thread, so it must not block.
+     */
+    public void subscribe(String user, Consumer<PostObject> listener) {
+        subscribers.computeIfAbsent(user, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void unsubscribe(String user, Consumer<PostObject> listener) {
+        subscribers.computeIfPresent(user, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    /**
+     * Passes every stored post at or below the visible watermark to its
+     * subscribers. A post stored while a lower seq is in flight waits here
+     * until that one lands or fails; whichever poster moves the watermark
+     * announces it.
+     */
+    private void announce() {
+        synchronized (announceLock) {
+            while (true) {
+                PostObject post;
+                synchronized (inFlight) {
+                    if (unannounced.isEmpty() || unannounced.firstKey() > visibleWatermark()) {
+                        return;
+                    }
+                    post = unannounced.pollFirstEntry().getValue();
+                }
+                notifySubscribers(post);
+            }
+        }
+    }
+
+    private void notifySubscribers(PostObject post) {
+        List<Consumer<PostObject>> listeners = subscribers.get(post.getUser());
+        if (listeners == null) return;
+        for (Consumer<PostObject> listener : listeners) {
+            try {
+                listener.accept(post);
+            } catch (RuntimeException e) {
+                System.err.println("[!] Post listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Highest sequence id such that every post at or below it is either
+     * visible or has failed for good.
+     */
+    private long visibleWatermark() {
+        synchronized (inFlight) {
+            return inFlight.isEmpty() ? lastSeq.get() : inFlight.first() - 1;
+        }
     }
 
     /**
      * Gets all posts from a specific user.
+     * Returns a copy so callers can iterate while other threads post.
      */
     public List<PostObject> getPosts(String username) {
-        return userPosts.getOrDefault(username, new ArrayList<>());
+        if (segments != null) {
+            return getPosts(username, 0, 0);
+        }
+        hydrate(username);
+        Mailbox mailbox = userPosts.get(username);
+        return mailbox == null ? new ArrayList<>() : mailbox.snapshot();
+    }
+
+    /**
+     * Gets up to limit posts for a user with a sequence id greater than since,
+     * oldest first. A limit of 0 returns everything after since.
+     */
+    public List<PostObject> getPosts(String username, long since, int limit) {
+        if (segments != null) {
+            PostIndex index = userIndex.get(username);
+            return index == null ? new ArrayList<>() : readPage(index.range(since, visibleWatermark(), limit));
+        }
+        hydrate(username);
+        Mailbox mailbox = userPosts.get(username);
+        return mailbox == null ? new ArrayList<>() : mailbox.range(since, visibleWatermark(), limit);
     }
 
     /**
-     * Adds a post to the in-memory map only.
+     * Adds a post to the in-memory map only. Posts loaded from files written
+     * before sequence ids existed are numbered in load order, and posts
+     * written before times were recorded count as stored now.
      */
     private void addToMemory(PostObject post) {
+        if (post.getSeq() == 0) {
+            post.setSeq(lastSeq.incrementAndGet());
+        } else {
+            lastSeq.accumulateAndGet(post.getSeq(), Math::max);
+        }
+        if (post.getTime() == 0) {
+            post.setTime(System.currentTimeMillis());
+        }
         String username = post.getUser();
-        userPosts.computeIfAbsent(username, k -> new ArrayList<>()).add(post);
+        Mailbox mailbox = userPosts.computeIfAbsent(username, k -> new Mailbox());
+        mailbox.add(post);
+        if (mailboxCap > 0 && mailbox.size() > mailboxCap) {
+            countRemoved(mailbox.trimTo(mailboxCap));
+        }
+    }
+
+    /**
+     * Adds a stored post's location to its recipient's index.
+     */
+    private void addToIndex(PostObject post, long ref) {
+        PostIndex index = userIndex.computeIfAbsent(post.getUser(), k -> new PostIndex());
+        index.add(post.getSeq(), ref, segments.lengthOf(ref), post.getTime());
+        if (mailboxCap > 0 && index.size() > mailboxCap) {
+            countRemoved(index.trimTo(mailboxCap));
+        }
+    }
+
+    /**
+     * Reads the bodies of an index page from the mapped segments.
+     */
+    private List<PostObject> readPage(PostIndex.Page page) {
+        List<PostObject> posts = new ArrayList<>(page.size);
+        for (int i = 0; i < page.size; i++) {
+            try {
+                posts.add(segments.read(page.refs[i], page.lengths[i]));
+            } catch (IOException e) {
+                System.err.println("[!] Failed to read post: " + e.getMessage());
+            }
+        }
+        return posts;
+    }
+
+    private File logFile(long generation) {
+        return new File(boardFile.getPath() + ".log." + generation);
+    }
+
+    /**
+     * Lists the generations of every log file next to the board, sorted.
+     */
+    private List<Long> existingLogGenerations() {
+        File dir = boardFile.getAbsoluteFile().getParentFile();
+        String prefix = boardFile.getName() + ".log.";
+        List<Long> generations = new ArrayList<>();
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    generations.add(Long.parseLong(f.getName().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
     }
 }
@@ -1,28 +1,110 @@
 package server;
 
 import util.SocketWrapper;
+import common.AckMessage;
 import common.AuthenticateMessage;
+import common.BatchPostMessage;
+import common.BatchPostResponseMessage;
 import common.CreateMessage;
 import common.GetMessage;
 import common.PostMessage;
 import common.PostObject;
 import common.PubKeyRequestMessage;
+import common.PubKeyResponseMessage;
 import common.ResponseMessage;
 import common.StatusMessage;
+import common.SubscribeMessage;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
-import util.SocketWrapper;
 
 public class BulletinBoardService {
 
+    // used when config.json does not set max-connections
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    // seconds a kept-alive connection may sit idle before the server closes it
+    private static final int DEFAULT_IDLE_TIMEOUT = 30;
+
+    // defaults for the board write-ahead log
+    private static final int DEFAULT_FSYNC_BATCH = 32;
+    private static final int DEFAULT_FSYNC_INTERVAL = 100;
+    private static final int DEFAULT_COMPACT_INTERVAL = 300;
+
+    // megabytes per post segment file when board-store is "segments"
+    private static final int DEFAULT_SEGMENT_MB = 64;
+
+    // scrypt work waiting beyond this many queued tasks is rejected as busy
+    private static final int DEFAULT_HASH_QUEUE = 64;
+
+    // seconds a session token stays valid
+    private static final int DEFAULT_SESSION_TTL = 900;
+
+    // post retention: seconds a post is kept and posts kept per user; 0 turns either off
+    private static final int DEFAULT_POST_TTL = 0;
+    private static final int DEFAULT_MAILBOX_CAP = 0;
+
+    // selector threads for the nio transport
+    private static final int DEFAULT_NIO_THREADS = 2;
+
+    // users one bulk PubKeyRequest may name
+    private static final int MAX_BULK_KEYS = 256;
+
+    // entries one BatchPost may carry
+    private static final int MAX_BATCH_POSTS = 1000;
+
+    // local port serving /metrics; 0 leaves the endpoint off
+    private static final int DEFAULT_METRICS_PORT = 0;
+
+    // request types with their own latency series; anything else is counted as "unknown"
+    private static final String[] MESSAGE_TYPES = {
+        "Create", "Authenticate", "PubKeyRequest", "Post", "BatchPost", "Subscribe", "Ack", "GetMessage"
+    };
+    private static final Map<String, LatencyHistogram> MESSAGE_TIME = new HashMap<>();
+    private static final Map<String, Metrics.Counter> MESSAGE_ERRORS = new HashMap<>();
+    static {
+        for (String type : MESSAGE_TYPES) {
+            registerMessageType(type);
+        }
+        registerMessageType("unknown");
+    }
+
+    private static final LatencyHistogram TLS_HANDSHAKE = Metrics.histogram("bbs_tls_handshake_seconds",
+        "Time from accepting a connection to the end of its TLS handshake.");
+
+    // per-request console output; off by default because println serializes every worker
+    private static boolean debug;
+
+    private static boolean keepAlive;
+    private static int idleTimeoutMillis;
+    private static boolean binaryProtocol;
+
+    // Subscribe holds its connection open, which only the nio transport can do without a thread
+    private static boolean pushEnabled;
+
+    private static UserDatabase userDb;
+    private static BulletinBoard board;
+    private static HashWorkerPool hashPool;
+    private static SessionManager sessions;
+    private static boolean requireSession;
+
     public static void main(String[] args) {
 
         // check if config path is provided
@@ -43,126 +125,130 @@ public class BulletinBoardService {
             String keystorePass = (String) config.get("keystore-pass");
             String usersFile = (String) config.get("users-file");
             String boardFile = (String) config.get("board-file");
+            int maxConnections = intOption(config, "max-connections", DEFAULT_MAX_CONNECTIONS);
+            keepAlive = config.containsKey("keep-alive") && (Boolean) config.get("keep-alive");
+            debug = config.containsKey("debug") && (Boolean) config.get("debug");
+            idleTimeoutMillis = 1000 * intOption(config, "idle-timeout", DEFAULT_IDLE_TIMEOUT);
+
+            // clients may negotiate binary frames unless the config turns it off
+            binaryProtocol = !config.containsKey("binary-protocol") || (Boolean) config.get("binary-protocol");
+
+            // board log settings: fsync policy and how often the log is compacted
+            String fsyncMode = (String) config.get("board-fsync");
+            int fsyncParam = "interval".equals(fsyncMode)
+                ? intOption(config, "board-fsync-interval", DEFAULT_FSYNC_INTERVAL)
+                : intOption(config, "board-fsync-batch", DEFAULT_FSYNC_BATCH);
+            AppendLog.SyncPolicy boardSync = AppendLog.SyncPolicy.parse(fsyncMode, fsyncParam);
+            AppendLog.SyncPolicy usersSync = AppendLog.SyncPolicy.parse((String) config.get("users-fsync"), 1);
+            int compactInterval = intOption(config, "board-compact-interval", DEFAULT_COMPACT_INTERVAL);
+
+            // unacknowledged posts are dropped after post-ttl seconds or once a mailbox passes mailbox-cap
+            int postTtl = intOption(config, "post-ttl", DEFAULT_POST_TTL);
+            int mailboxCap = intOption(config, "mailbox-cap", DEFAULT_MAILBOX_CAP);
+
+            // "segments" keeps post bodies in memory-mapped files instead of the heap
+            int segmentSize = "segments".equals(config.get("board-store"))
+                ? intOption(config, "board-segment-size", DEFAULT_SEGMENT_MB) * 1024 * 1024
+                : 0;
+
+            // scrypt runs on its own core-sized pool with a bounded queue
+            int hashThreads = intOption(config, "hash-threads", Runtime.getRuntime().availableProcessors());
+            int hashQueue = intOption(config, "hash-queue", DEFAULT_HASH_QUEUE);
+            hashPool = new HashWorkerPool(hashThreads, hashQueue);
+
+            // session tokens let authenticated clients skip scrypt and TOTP on later requests
+            sessions = new SessionManager(intOption(config, "session-ttl", DEFAULT_SESSION_TTL));
+            requireSession = config.containsKey("require-session") && (Boolean) config.get("require-session");
 
             // configure TLS system properties
             System.setProperty("javax.net.ssl.keyStore", keystoreFile);
             System.setProperty("javax.net.ssl.keyStorePassword", keystorePass);
 
+            // "binary" snapshots load in one pass; lazy-load serves clients while mailboxes load
+            boolean binarySnapshot = "binary".equals(config.get("snapshot-format"));
+            boolean lazyLoad = config.containsKey("lazy-load") && (Boolean) config.get("lazy-load");
+
+            // initialize databases
+            userDb = new UserDatabase(usersFile, usersSync, binarySnapshot);
+            board = new BulletinBoard(boardFile, new BulletinBoard.Options()
+                .syncPolicy(boardSync)
+                .compactInterval(compactInterval)
+                .segmentSize(segmentSize)
+                .binarySnapshot(binarySnapshot)
+                .lazyLoad(lazyLoad)
+                .postTtl(postTtl)
+                .mailboxCap(mailboxCap));
+
+            // counters and latency histograms in the Prometheus text format, on the loopback interface only
+            int metricsPort = intOption(config, "metrics-port", DEFAULT_METRICS_PORT);
+            if (metricsPort > 0) {
+                new MetricsServer(metricsPort);
+                System.out.println("[+] metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            }
+
+            // write fresh snapshots on shutdown so the next start has no logs to replay
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    board.compact();
+                    userDb.checkpoint();
+                    System.out.println("[+] snapshots written");
+                } catch (IOException e) {
+                    System.err.println("[!] Failed to write snapshots: " + e.getMessage());
+                }
+            }, "snapshot-on-exit"));
+
+            // the nio transport serves many mostly idle clients on a few selector threads
+            if ("nio".equals(config.get("transport"))) {
+                pushEnabled = true;
+                int loopThreads = intOption(config, "nio-threads", DEFAULT_NIO_THREADS);
+                int workerThreads = intOption(config, "nio-workers", 2 * Runtime.getRuntime().availableProcessors());
+                NioServer server = new NioServer(port, SSLContext.getDefault(), BulletinBoardService::handleMessage,
+                    loopThreads, workerThreads, maxConnections, keepAlive, idleTimeoutMillis,
+                    binaryProtocol, debug);
+                System.out.println("[+] nio server started on port " + port + " (max " + maxConnections + " connections)");
+                server.run();
+                return;
+            }
+
             // create server socket
             SSLServerSocketFactory factory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
             SSLServerSocket serverSocket = (SSLServerSocket) factory.createServerSocket(port);
 
-            // initialize databases
-            UserDatabase userDb = new UserDatabase(usersFile);
-            BulletinBoard board = new BulletinBoard(boardFile);
+            // worker threads handle connections so a slow client never blocks accept
+            ExecutorService workers = Executors.newCachedThreadPool();
+            Semaphore connectionSlots = new Semaphore(maxConnections);
+            int slots = maxConnections;
+            Metrics.gauge("bbs_connections", "Open client connections.",
+                () -> slots - connectionSlots.availablePermits());
 
-            System.out.println("[+] server started on port " + port);
-
-        
+            System.out.println("[+] server started on port " + port + " (max " + maxConnections + " connections)");
 
             // server loop to accept clients
             while (true) {
 
-                SSLSocket client = (SSLSocket) serverSocket.accept();
-                System.out.println("[+] client connected");
-                SocketWrapper socket = new SocketWrapper(client);
-                
-                try {
+                // wait for a free slot before accepting so excess clients queue in the backlog
+                connectionSlots.acquire();
 
-                    // read message from client, get type
-                    JSONObject message = socket.receiveMessage();
-                    String type = (String) message.get("type");
-
-                    // check if type is null
-                    if (type == null) {
-                        System.out.println("missing type field in client message");
-                        return;
-                    }
-                    
-                    System.out.println("Got type: " + type);
-
-
-                    // switch statement depending on which type of message the client sent
-                    switch (type) {
-                        case "Create":
-                            CreateMessage createMsg = new CreateMessage();
-                            createMsg.deserialize(message);
-                            
-                            boolean created = userDb.createUser(
-                                createMsg.getUser(),
-                                createMsg.getPass(),
-                                createMsg.getPubkey()
-                            );
-
-                            if (created) {
-
-                                // fetch the generated TOTP key and send it back to the client
-                                String totpKey = userDb.getTotpKey(createMsg.getUser());
-                                socket.sendMessage(new StatusMessage(true, totpKey));
-                            } else {
-                                socket.sendMessage(new StatusMessage(false, "User already exists."));
-                            }
-                            break;
-
-                        case "Authenticate":
-                            AuthenticateMessage auth = new AuthenticateMessage();
-                            auth.deserialize(message);  // ✅ deserialize first
-                        
-                            boolean passOk = userDb.validatePassword(auth.getUser(), auth.getPass());
-                            boolean totpOk = userDb.validateTOTP(auth.getUser(), auth.getOtp());
-                        
-                            System.out.println("Pass OK? " + passOk);
-                            System.out.println("TOTP OK? " + totpOk);
-                        
-                            boolean valid = passOk && totpOk;
-                            socket.sendMessage(new StatusMessage(valid, valid ? "Authentication successful." : "Authentication failed."));
-                            break;
-
-                        case "PubKeyRequest":
-                            PubKeyRequestMessage req = new PubKeyRequestMessage();
-                            req.deserialize(message);
-                            String pubkey = userDb.getPublicKey(req.getUser());
-                            boolean found = pubkey != null;
-                            socket.sendMessage(new StatusMessage(found, found ? pubkey : "User not found."));
-                            break;
-
-                        case "Post":
-                            PostMessage postMsg = new PostMessage();
-                            postMsg.deserialize(message);
-                            boolean exists = userDb.userExists(postMsg.getUser());
-                            boolean saved = exists && board.addPost(new PostObject(
-                                postMsg.getUser(),
-                                postMsg.getMessage(),
-                                postMsg.getWrappedKey(),
-                                postMsg.getIv()
-                            ));
-                            socket.sendMessage(new StatusMessage(saved, saved ? "Message posted." : "Target user not found."));
-                            break;
-
-                        case "GetMessage":
-                            GetMessage getMsg = new GetMessage();
-                            getMsg.deserialize(message);
-                        
-                            List<PostObject> posts = board.getPosts(getMsg.getUser());
-                            System.out.println("[GetMessage] Posts found: " + posts.size());
-                        
-                            if (posts.isEmpty()) {
-                                System.out.println("[GetMessage] No posts — sending status.");
-                                socket.sendMessage(new StatusMessage(false, "No such user or no messages."));
-                            } else {
-                                System.out.println("[GetMessage] Sending ResponseMessage...");
-                                socket.sendMessage(new ResponseMessage(posts));
-                            }
-                            break;
-                        
-                    }
-                    
+                SSLSocket client;
+                try {
+                    client = (SSLSocket) serverSocket.accept();
                 } catch (IOException e) {
-                    System.out.println("error reading message");
+                    connectionSlots.release();
+                    System.out.println("error accepting client");
                     e.printStackTrace();
-                } finally {
-                    socket.close();
+                    continue;
                 }
+
+                if (debug) {
+                    System.out.println("[+] client connected");
+                }
+                workers.execute(() -> {
+                    try {
+                        handleClient(client);
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
             }
 
         } catch (Exception e) {
@@ -170,4 +256,342 @@ public class BulletinBoardService {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Reads an optional integer setting from the config, falling back to a default.
+     */
+    private static int intOption(JSONObject config, String key, int defaultValue) {
+        return config.containsKey(key) ? ((Double) config.get(key)).intValue() : defaultValue;
+    }
+
+    /**
+     * Checks the session token sent with a request. A missing token is only
+     * accepted when require-session is off; a token that is sent must be
+     * valid and, if owner is given, belong to that user.
+     */
+    private static boolean sessionAllows(String token, String owner) {
+        if (token == null) {
+            return !requireSession;
+        }
+        String user = sessions.validate(token);
+        return user != null && (owner == null || owner.equals(user));
+    }
+
+    /**
+     * Serves a single client connection on a worker thread.
+     * With keep-alive enabled the connection stays open for further requests
+     * until the client closes it or it sits idle past the idle timeout.
+     */
+    private static void handleClient(SSLSocket client) {
+        SocketWrapper socket = null;
+
+        try {
+            // finish the TLS handshake here rather than on the accept thread
+            long handshakeStart = System.nanoTime();
+            client.startHandshake();
+            TLS_HANDSHAKE.recordSince(handshakeStart);
+            socket = new SocketWrapper(client);
+
+            if (keepAlive) {
+                client.setSoTimeout(idleTimeoutMillis);
+            }
+
+            // switch to binary frames if the client opens with the binary hello
+            if (binaryProtocol && socket.acceptHandshake() && debug) {
+                System.out.println("[+] client negotiated binary protocol v" + socket.getProtocolVersion());
+            }
+
+            do {
+                // read message from client and dispatch it
+                JSONObject message = socket.receiveMessage();
+                JSONSerializable response = handleMessage(message);
+
+                // drop the connection if the client sent something we cannot answer
+                if (response == null) {
+                    break;
+                }
+                socket.sendMessage(response);
+            } while (keepAlive);
+
+        } catch (EOFException e) {
+            if (debug) {
+                System.out.println("[+] client disconnected");
+            }
+        } catch (SocketTimeoutException e) {
+            if (debug) {
+                System.out.println("[+] closing idle connection");
+            }
+        } catch (IOException e) {
+            System.out.println("error reading message");
+            e.printStackTrace();
+        } finally {
+            if (socket != null) {
+                socket.close();
+            } else {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles one client message and returns the response to send back,
+     * or null if the message could not be understood. Each call is timed
+     * into its type's latency histogram.
+     */
+    private static JSONSerializable handleMessage(JSONObject message) throws IOException {
+        String type = (String) message.get("type");
+
+        // check if type is null
+        if (type == null) {
+            System.out.println("missing type field in client message");
+            return null;
+        }
+
+        if (debug) {
+            System.out.println("Got type: " + type);
+        }
+
+        String series = MESSAGE_TIME.containsKey(type) ? type : "unknown";
+        long start = System.nanoTime();
+        try {
+            return dispatch(type, message);
+        } catch (IOException | RuntimeException e) {
+            MESSAGE_ERRORS.get(series).increment();
+            throw e;
+        } finally {
+            MESSAGE_TIME.get(series).recordSince(start);
+        }
+    }
+
+    /**
+     * Registers the latency histogram and error counter of one message type.
+     */
+    private static void registerMessageType(String type) {
+        MESSAGE_TIME.put(type, Metrics.histogram("bbs_message_seconds",
+            "Time to handle one request, by message type.", "type", type));
+        MESSAGE_ERRORS.put(type, Metrics.counter("bbs_message_errors_total",
+            "Requests that failed with an exception, by message type.", "type", type));
+    }
+
+    /**
+     * Runs the handler for one message type.
+     */
+    private static JSONSerializable dispatch(String type, JSONObject message) throws IOException {
+        // switch statement depending on which type of message the client sent
+        switch (type) {
+            case "Create":
+                CreateMessage createMsg = new CreateMessage();
+                createMsg.deserialize(message);
+
+                boolean created;
+                try {
+                    created = hashPool.run(() -> userDb.createUser(
+                        createMsg.getUser(),
+                        createMsg.getPass(),
+                        createMsg.getPubkey(),
+                        createMsg.getScheme()
+                    ));
+                } catch (HashWorkerPool.BusyException e) {
+                    return new StatusMessage(false, "Server busy, try again later.");
+                } catch (Exception e) {
+                    throw new IOException("account creation failed", e);
+                }
+
+                if (created) {
+
+                    // fetch the generated TOTP key and send it back to the client
+                    String totpKey = userDb.getTotpKey(createMsg.getUser());
+                    return new StatusMessage(true, totpKey);
+                }
+                return new StatusMessage(false, "User already exists.");
+
+            case "Authenticate":
+                AuthenticateMessage auth = new AuthenticateMessage();
+                auth.deserialize(message);  // ✅ deserialize first
+
+                boolean passOk;
+                try {
+                    passOk = hashPool.run(() -> userDb.validatePassword(auth.getUser(), auth.getPass()));
+                } catch (HashWorkerPool.BusyException e) {
+                    return new StatusMessage(false, "Server busy, try again later.");
+                } catch (Exception e) {
+                    throw new IOException("password check failed", e);
+                }
+                // only a correct password spends the TOTP code
+                boolean totpOk = passOk && userDb.validateTOTP(auth.getUser(), auth.getOtp());
+
+                if (debug) {
+                    System.out.println("Pass OK? " + passOk);
+                    System.out.println("TOTP OK? " + totpOk);
+                }
+
+                boolean valid = passOk && totpOk;
+                if (!valid) {
+                    return new StatusMessage(false, "Authentication failed.");
+                }
+                return new StatusMessage(true, "Authentication successful.", sessions.issue(auth.getUser()));
+
+            case "PubKeyRequest":
+                PubKeyRequestMessage req = new PubKeyRequestMessage();
+                req.deserialize(message);
+                if (req.isBulk()) {
+                    return lookupKeys(req.getUsers());
+                }
+                String pubkey = userDb.getPublicKey(req.getUser());
+                boolean found = pubkey != null;
+                StatusMessage keyStatus = new StatusMessage(found, found ? pubkey : "User not found.");
+                keyStatus.setVersion(userDb.getKeyVersion(req.getUser()));
+                return keyStatus;
+
+            case "Post":
+                PostMessage postMsg = new PostMessage();
+                postMsg.deserialize(message);
+                if (!sessionAllows(postMsg.getToken(), null)) {
+                    return new StatusMessage(false, "Session expired or invalid.");
+                }
+                boolean exists = userDb.userExists(postMsg.getUser());
+                PostObject post = new PostObject(
+                    postMsg.getUser(),
+                    postMsg.getMessage(),
+                    postMsg.getWrappedKey(),
+                    postMsg.getIv()
+                );
+                // senders that leave the scheme out get the one stored with the recipient's key
+                post.setScheme(postMsg.getScheme() != null
+                    ? postMsg.getScheme()
+                    : userDb.getKeyScheme(postMsg.getUser()));
+                boolean saved = exists && board.addPost(post);
+                StatusMessage postStatus = new StatusMessage(saved, saved ? "Message posted." : "Target user not found.");
+
+                // lets the sender notice that the key it encrypted with has been replaced
+                postStatus.setVersion(userDb.getKeyVersion(postMsg.getUser()));
+                return postStatus;
+
+            case "BatchPost":
+                BatchPostMessage batchMsg = new BatchPostMessage();
+                batchMsg.deserialize(message);
+                if (!sessionAllows(batchMsg.getToken(), null)) {
+                    return new StatusMessage(false, "Session expired or invalid.");
+                }
+                return batchPost(batchMsg.getEntries());
+
+            case "Subscribe":
+                SubscribeMessage subMsg = new SubscribeMessage();
+                subMsg.deserialize(message);
+                if (!sessionAllows(subMsg.getToken(), subMsg.getUser())) {
+                    return new StatusMessage(false, "Session expired or invalid.");
+                }
+                if (!pushEnabled) {
+                    return new StatusMessage(false, "Subscribe needs the nio transport.");
+                }
+                return new Subscription(board, subMsg.getUser(), subMsg.getSince());
+
+            case "Ack":
+                AckMessage ackMsg = new AckMessage();
+                ackMsg.deserialize(message);
+                // deleting posts always needs the recipient's session, even with require-session off
+                if (ackMsg.getToken() == null || !sessionAllows(ackMsg.getToken(), ackMsg.getUser())) {
+                    return new StatusMessage(false, "Session expired or invalid.");
+                }
+                int deleted = board.acknowledge(ackMsg.getUser(), ackMsg.getUpTo());
+                if (deleted < 0) {
+                    return new StatusMessage(false, "Could not save acknowledgement.");
+                }
+                return new StatusMessage(true, deleted + " posts deleted.");
+
+            case "GetMessage":
+                GetMessage getMsg = new GetMessage();
+                getMsg.deserialize(message);
+                if (!sessionAllows(getMsg.getToken(), getMsg.getUser())) {
+                    return new StatusMessage(false, "Session expired or invalid.");
+                }
+
+                // fetch one extra post to learn whether the limit cut the page short
+                int limit = getMsg.getLimit();
+                List<PostObject> posts = board.getPosts(getMsg.getUser(), getMsg.getSince(),
+                    limit > 0 ? limit + 1 : 0);
+                boolean more = limit > 0 && posts.size() > limit;
+                if (more) {
+                    posts = posts.subList(0, limit);
+                }
+                if (debug) {
+                    System.out.println("[GetMessage] Posts found: " + posts.size());
+                }
+
+                if (posts.isEmpty()) {
+                    return new StatusMessage(false, "No such user or no messages.");
+                }
+                if (debug) {
+                    System.out.println("[GetMessage] Sending ResponseMessage...");
+                }
+                long next = posts.get(posts.size() - 1).getSeq();
+                return new ResponseMessage(posts, next, more);
+
+            default:
+                System.out.println("unknown message type: " + type);
+                return null;
+        }
+    }
+
+    /**
+     * Answers a bulk PubKeyRequest. Unknown users are left out of the reply.
+     */
+    private static JSONSerializable lookupKeys(List<String> users) {
+        if (users.size() > MAX_BULK_KEYS) {
+            return new StatusMessage(false, "At most " + MAX_BULK_KEYS + " users per request.");
+        }
+
+        List<PubKeyResponseMessage.Entry> entries = new ArrayList<>(users.size());
+        for (String user : users) {
+            String pubkey = userDb.getPublicKey(user);
+            if (pubkey != null) {
+                entries.add(new PubKeyResponseMessage.Entry(
+                    user, pubkey, userDb.getKeyScheme(user), userDb.getKeyVersion(user)));
+            }
+        }
+        return new PubKeyResponseMessage(entries);
+    }
+
+    /**
+     * Answers a BatchPost. Every recipient is checked first, then all the
+     * valid entries go to the board as one durable write; the reply has a
+     * status for each entry in request order.
+     */
+    private static JSONSerializable batchPost(List<PostObject> entries) {
+        if (entries.size() > MAX_BATCH_POSTS) {
+            return new StatusMessage(false, "At most " + MAX_BATCH_POSTS + " entries per batch.");
+        }
+
+        StatusMessage[] results = new StatusMessage[entries.size()];
+        List<PostObject> accepted = new ArrayList<>(entries.size());
+        for (int i = 0; i < results.length; i++) {
+            PostObject entry = entries.get(i);
+            if (entry.getUser() == null || entry.getMessage() == null
+                    || entry.getWrappedKey() == null || entry.getIv() == null) {
+                results[i] = new StatusMessage(false, "Missing post fields.");
+            } else if (!userDb.userExists(entry.getUser())) {
+                results[i] = new StatusMessage(false, "Target user not found.");
+            } else {
+                // senders that leave the scheme out get the one stored with the recipient's key
+                if (entry.getScheme() == null) {
+                    entry.setScheme(userDb.getKeyScheme(entry.getUser()));
+                }
+                accepted.add(entry);
+            }
+        }
+
+        boolean saved = board.addPosts(accepted);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = saved
+                    ? new StatusMessage(true, "Message posted.")
+                    : new StatusMessage(false, "Failed to save post.");
+            }
+        }
+        return new BatchPostResponseMessage(List.of(results));
+    }
 }
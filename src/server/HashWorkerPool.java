@@ -0,0 +1,95 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated pool for scrypt work (account creation and password checks).
+ *
+ * Each scrypt call needs about 16 MB and tens of milliseconds of CPU, so the
+ * pool runs at most one hash per core and keeps a bounded queue behind it.
+ * When the queue is full new work is rejected immediately instead of piling
+ * up, which keeps a burst of logins from starving posts and fetches or
+ * exhausting the heap with concurrent scrypt buffers.
+ */
+public class HashWorkerPool {
+
+    /**
+     * Thrown when the pool is saturated and the caller should back off.
+     */
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private static final LatencyHistogram QUEUE_WAIT = Metrics.histogram("bbs_hash_queue_wait_seconds",
+        "Time scrypt work waited for a hash worker.");
+    private static final Metrics.Counter REJECTED = Metrics.counter("bbs_hash_rejected_total",
+        "Scrypt work turned away because the hash queue was full.");
+
+    public HashWorkerPool(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            r -> {
+                Thread t = new Thread(r, "scrypt-worker-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        Metrics.gauge("bbs_hash_queue_depth", "Scrypt tasks waiting for a hash worker.", this::getQueueDepth);
+        Metrics.gauge("bbs_hash_active", "Hash workers running scrypt.", this::getActiveCount);
+    }
+
+    /**
+     * Runs a hashing task on the pool and waits for its result.
+     *
+     * @throws BusyException if the queue is full
+     * @throws Exception whatever the task itself threw
+     */
+    public <T> T run(Callable<T> task) throws Exception {
+        Future<T> future;
+        long queued = System.nanoTime();
+        try {
+            future = executor.submit(() -> {
+                QUEUE_WAIT.recordSince(queued);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            throw new BusyException("hash pool saturated");
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Number of hash tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
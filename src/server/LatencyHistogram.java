@@ -0,0 +1,111 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values (nanoseconds) are counted in log-linear buckets: every power of two
+ * is split into SUB_BUCKETS equal buckets, so any recorded value is known to
+ * within 1/SUB_BUCKETS of itself however large it is, from one nanosecond up
+ * to MAX_VALUE. Recording is one increment on a fixed array, with no locks
+ * or allocation, so it is cheap enough for every request. Counts are kept
+ * since startup; quantiles are read from a copy of the buckets.
+ */
+public final class LatencyHistogram {
+
+    // buckets per power of two; values are kept to within 1/64 (about 1.6%)
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+
+    // largest value told apart, about 18 minutes; anything longer counts as this
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one value in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Records the time elapsed since a System.nanoTime() reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Reads the count and the given quantiles from one copy of the buckets.
+     * Each quantile is the highest value in the bucket holding it, so it is
+     * never below the true value; quantile 1 is the exact maximum.
+     *
+     * @return the count, followed by one value per quantile
+     */
+    public long[] quantiles(double... quantiles) {
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+
+        long[] result = new long[quantiles.length + 1];
+        result[0] = total;
+        for (int q = 0; q < quantiles.length; q++) {
+            if (total == 0) continue;
+            if (quantiles[q] >= 1) {
+                result[q + 1] = max.get();
+                continue;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            long seen = 0;
+            for (int i = 0; i < copy.length; i++) {
+                seen += copy[i];
+                if (seen >= rank) {
+                    result[q + 1] = Math.min(highestValueAt(i), max.get());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bucket of a value: values below 2 * SUB_BUCKETS have a bucket each;
+     * above that, shift drops the low bits so SUB_BUCKET_BITS remain.
+     */
+    private static int indexOf(long value) {
+        int shift = Math.max(0, (64 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * The largest value that falls in bucket i.
+     */
+    private static long highestValueAt(int i) {
+        if (i < 2 * SUB_BUCKETS) return i;
+        int shift = i / SUB_BUCKETS - 1;
+        long sub = i - shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
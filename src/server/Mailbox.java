@@ -0,0 +1,168 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.PostObject;
+
+/**
+ * The posts addressed to one user, ordered by sequence id. Each mailbox has
+ * its own read/write lock, so any number of readers can fetch it at once and
+ * a post to one user never waits on readers or writers of another.
+ */
+public class Mailbox {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<PostObject> posts = new ArrayList<>();
+
+    /**
+     * Inserts a post in sequence order. Posts almost always arrive in order,
+     * so this is an append in the common case.
+     */
+    public void add(PostObject post) {
+        lock.writeLock().lock();
+        try {
+            int i = posts.size();
+            while (i > 0 && posts.get(i - 1).getSeq() > post.getSeq()) {
+                i--;
+            }
+            posts.add(i, post);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a batch of posts, e.g. a mailbox loaded from a snapshot after
+     * newer posts already arrived, and restores sequence order.
+     */
+    public void addAll(List<PostObject> more) {
+        lock.writeLock().lock();
+        try {
+            posts.addAll(more);
+            posts.sort(Comparator.comparingLong(PostObject::getSeq));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every post with seq <= upTo.
+     *
+     * @return the number of posts removed
+     */
+    public int removeThrough(long upTo) {
+        lock.writeLock().lock();
+        try {
+            int count = firstAfter(upTo);
+            posts.subList(0, count).clear();
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest posts until at most max are left.
+     *
+     * @return the number of posts removed
+     */
+    public int trimTo(int max) {
+        lock.writeLock().lock();
+        try {
+            int count = Math.max(0, posts.size() - max);
+            posts.subList(0, count).clear();
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every post stored before the given time.
+     *
+     * @return the number of posts removed
+     */
+    public int removeOlderThan(long time) {
+        lock.writeLock().lock();
+        try {
+            int before = posts.size();
+            posts.removeIf(post -> post.getTime() < time);
+            return before - posts.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of every post so callers can iterate without holding the lock.
+     */
+    public List<PostObject> snapshot() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(posts);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to limit posts with since < seq <= upTo, oldest first.
+     * A limit of 0 means no limit.
+     */
+    public List<PostObject> range(long since, long upTo, int limit) {
+        lock.readLock().lock();
+        try {
+            List<PostObject> page = new ArrayList<>();
+            for (int i = firstAfter(since); i < posts.size(); i++) {
+                PostObject post = posts.get(i);
+                if (post.getSeq() > upTo || (limit > 0 && page.size() >= limit)) break;
+                page.add(post);
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Binary search for the index of the first post with seq > since.
+     * Caller must hold the lock.
+     */
+    private int firstAfter(long since) {
+        int lo = 0;
+        int hi = posts.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (posts.get(mid).getSeq() <= since) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Copies every post into the given list.
+     */
+    public void copyTo(List<PostObject> out) {
+        lock.readLock().lock();
+        try {
+            out.addAll(posts);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return posts.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
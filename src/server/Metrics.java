@@ -0,0 +1,184 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's counters, gauges and latency histograms, written out in the
+ * Prometheus text format (served by MetricsServer).
+ *
+ * Each metric is registered once, usually into a static field of the class
+ * that updates it, and is identified by its name and labels; registering
+ * the same one again returns the existing metric, so both transports can
+ * share e.g. the TLS handshake histogram. Updating a counter or histogram
+ * never takes a lock. Gauges are read only when the metrics are written.
+ *
+ * Histograms are exported as summaries: quantiles, _sum and _count, in
+ * seconds.
+ */
+public final class Metrics {
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+
+    /**
+     * One metric name with its help text, type and a child per label set.
+     */
+    private static final class Family {
+        final String help;
+        final String type;
+        final Map<String, Object> children = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    // guarded by itself; registration is rare, so one lock is enough
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a counter, or returns the one already registered.
+     *
+     * @param labels label names and values, alternating
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, new Counter(), false);
+    }
+
+    /**
+     * Registers a latency histogram, or returns the one already registered.
+     *
+     * @param labels label names and values, alternating
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) register(name, help, "summary", labels, new LatencyHistogram(), false);
+    }
+
+    /**
+     * Registers a gauge read from value each time the metrics are written.
+     * A gauge registered again replaces the old one.
+     *
+     * @param labels label names and values, alternating
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value, true);
+    }
+
+    private static Object register(String name, String help, String type, String[] labels,
+                                   Object metric, boolean replace) {
+        String key = formatLabels(labels);
+        synchronized (FAMILIES) {
+            Family family = FAMILIES.computeIfAbsent(name, k -> new Family(help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+            }
+            if (replace) {
+                family.children.put(key, metric);
+                return metric;
+            }
+            return family.children.computeIfAbsent(key, k -> metric);
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        synchronized (FAMILIES) {
+            for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+                String name = entry.getKey();
+                Family family = entry.getValue();
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                    writeChild(out, name, child.getKey(), child.getValue());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeChild(StringBuilder out, String name, String labels, Object metric) {
+        if (metric instanceof Counter) {
+            sample(out, name, labels, Long.toString(((Counter) metric).get()));
+        } else if (metric instanceof LongSupplier) {
+            sample(out, name, labels, Long.toString(((LongSupplier) metric).getAsLong()));
+        } else {
+            LatencyHistogram histogram = (LatencyHistogram) metric;
+            long[] values = histogram.quantiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                String quantile = "quantile=\"" + QUANTILES[i] + "\"";
+                sample(out, name, labels.isEmpty() ? quantile : labels + "," + quantile, seconds(values[i + 1]));
+            }
+            sample(out, name + "_sum", labels, seconds(histogram.getSum()));
+            sample(out, name + "_count", labels, Long.toString(values[0]));
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Formats alternating label names and values as name="value" pairs,
+     * escaping the values as the text format requires.
+     */
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must come in name, value pairs");
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) out.append(',');
+            out.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"') {
+                    out.append('\\').append(ch);
+                } else if (ch == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(ch);
+                }
+            }
+            out.append('"');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,915 @@
+package server;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+
+import common.ResponseMessage;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+import util.BinaryCodec;
+
+/**
+ * Non-blocking TLS transport for the bulletin board.
+ *
+ * A few selector loops own all connections. Each loop does the socket IO and
+ * drives its connections' SSLEngines, and requests are framed straight out of
+ * the decrypted buffer: JSON lines, or BinaryCodec frames after the same
+ * hello SocketWrapper uses. Decoded requests go to a worker pool because
+ * Create and Authenticate block on scrypt. Like the blocking transport, a
+ * connection has one request in flight at a time and nothing more is read
+ * from it until the response has been written.
+ *
+ * Network and plaintext buffers come from a BufferPool and are returned as
+ * soon as they drain, so mostly idle polling clients hold no buffers.
+ * Responses are encoded straight into pooled buffers too, and each one goes
+ * back to the pool as soon as it has been wrapped, so a large GetMessage
+ * reply is held once and shrinks as it is sent.
+ *
+ * A request answered with a Subscription turns its connection into a push
+ * stream: after the reply the connection takes no more requests, is never
+ * closed as idle, and each message the subscription produces is queued on
+ * the owning loop and written out. A waiting subscriber is only a key in a
+ * selector, not a parked thread. A subscriber that falls more than
+ * MAX_PENDING_PUSHES messages behind is dropped.
+ */
+public class NioServer {
+
+    /**
+     * Handles one decoded request. Returns the response, or null to close
+     * the connection, the same contract as BulletinBoardService.handleMessage.
+     */
+    public interface Handler {
+        JSONSerializable handle(JSONObject message) throws IOException;
+    }
+
+    // how often each loop looks for idle connections
+    private static final long SWEEP_MILLIS = 1000;
+
+    // direct buffers kept around for reuse
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    // pushed messages a subscriber may have queued before it is dropped
+    private static final int MAX_PENDING_PUSHES = 1024;
+
+    private static final int MODE_UNKNOWN = 0;
+    private static final int MODE_JSON = 1;
+    private static final int MODE_BINARY = 2;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final LatencyHistogram TLS_HANDSHAKE = Metrics.histogram("bbs_tls_handshake_seconds",
+        "Time from accepting a connection to the end of its TLS handshake.");
+
+    // connection events are counted rather than printed, so they cost nothing on the loop threads
+    private static final Metrics.Counter REFUSED = Metrics.counter("bbs_connections_refused_total",
+        "Connections refused because max-connections was reached.");
+    private static final Metrics.Counter IDLE_CLOSED = Metrics.counter("bbs_connections_closed_total",
+        "Connections closed, by reason.", "reason", "idle");
+    private static final Metrics.Counter DISCONNECTED = Metrics.counter("bbs_connections_closed_total",
+        "Connections closed, by reason.", "reason", "disconnect");
+    private static final Metrics.Counter LAGGING_CLOSED = Metrics.counter("bbs_connections_closed_total",
+        "Connections closed, by reason.", "reason", "lagging-subscriber");
+    private static final Metrics.Counter BINARY_CLIENTS = Metrics.counter("bbs_binary_protocol_total",
+        "Connections that negotiated the binary protocol.");
+    private static final Metrics.Counter SUBSCRIPTIONS = Metrics.counter("bbs_subscriptions_total",
+        "Subscriptions opened.");
+
+    // errors are counted too, and only printed in debug mode, since any client can cause them
+    private static final Metrics.Counter REGISTER_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "register");
+    private static final Metrics.Counter LOOP_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "selector");
+    private static final Metrics.Counter SERVE_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "io");
+    private static final Metrics.Counter HANDLER_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "handler");
+    private static final Metrics.Counter PUSH_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "push");
+    private static final Metrics.Counter HANDSHAKE_ERRORS = Metrics.counter("bbs_connection_errors_total",
+        "Connections dropped or requests failed because of an error, by stage.", "stage", "handshake");
+
+    private final int port;
+    private final SSLContext context;
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+    private final IoLoop[] loops;
+    private final int maxConnections;
+    private final boolean keepAlive;
+    private final long idleTimeoutMillis;
+    private final boolean binaryProtocol;
+    private final boolean debug;
+    private final BufferPool pool;
+    private final int packetSize;
+    private final int appSize;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public NioServer(int port, SSLContext context, Handler handler, int loopThreads, int workerThreads,
+                     int maxConnections, boolean keepAlive, long idleTimeoutMillis, boolean binaryProtocol,
+                     boolean debug) throws IOException {
+        this.port = port;
+        this.context = context;
+        this.handler = handler;
+        this.maxConnections = maxConnections;
+        this.keepAlive = keepAlive;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.binaryProtocol = binaryProtocol;
+        this.debug = debug;
+        this.workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerThreads);
+
+        // size the pooled buffers from what the engine says a record can take
+        SSLSession session = context.createSSLEngine().getSession();
+        this.packetSize = session.getPacketBufferSize();
+        this.appSize = session.getApplicationBufferSize();
+        this.pool = new BufferPool(Math.max(packetSize, appSize), MAX_POOLED_BUFFERS);
+
+        this.loops = new IoLoop[loopThreads];
+        for (int i = 0; i < loopThreads; i++) {
+            loops[i] = new IoLoop();
+        }
+
+        Metrics.gauge("bbs_connections", "Open client connections.", connections::get);
+        Metrics.gauge("bbs_worker_queue_depth", "Requests and handshake tasks waiting for a worker.",
+            () -> workers.getQueue().size());
+        Metrics.gauge("bbs_worker_active", "Workers handling a request or handshake task.", workers::getActiveCount);
+    }
+
+    /**
+     * Starts the selector loops and accepts connections on the calling
+     * thread. Does not return unless the listening socket fails.
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            int next = 0;
+
+            while (true) {
+                SocketChannel channel = server.accept();
+                if (connections.incrementAndGet() > maxConnections) {
+                    connections.decrementAndGet();
+                    REFUSED.increment();
+                    channel.close();
+                    continue;
+                }
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            }
+        }
+    }
+
+    /**
+     * Number of open connections.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * One selector thread and the connections registered with it.
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this loop's thread; used by workers to hand results back.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                SSLEngine engine = context.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.beginHandshake();
+                Connection conn = new Connection(this, channel, engine);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                error(REGISTER_ERRORS, "error registering client", e);
+                connections.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+
+            while (true) {
+                try {
+                    selector.select(SWEEP_MILLIS);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                    while (ready.hasNext()) {
+                        SelectionKey key = ready.next();
+                        ready.remove();
+                        ((Connection) key.attachment()).onReady(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (idleTimeoutMillis > 0 && now - lastSweep >= SWEEP_MILLIS) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    error(LOOP_ERRORS, "error in selector loop", e);
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (conn != null && !conn.busy && now - conn.lastActive > idleTimeoutMillis) {
+                    IDLE_CLOSED.increment();
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state. Everything except the worker hand-off runs on
+     * the owning loop's thread, so the SSLEngine is never used concurrently.
+     */
+    private final class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private SelectionKey key;
+
+        // netIn: ciphertext read, appIn: plaintext not yet framed,
+        // netOut: ciphertext not yet written, appOut: response chunk not yet wrapped
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appOut;
+
+        // the rest of the response appOut belongs to
+        private final ArrayDeque<ByteBuffer> appOutRest = new ArrayDeque<>();
+
+        private int mode = MODE_UNKNOWN;
+        private int scanned;
+        private boolean busy;
+        private boolean runningTasks;
+        private boolean closeAfterWrite;
+        private boolean closed;
+        private long lastActive = System.currentTimeMillis();
+        private final long acceptedAt = System.nanoTime();
+        private boolean handshaken;
+
+        // set once a Subscription reply has gone out
+        private boolean streaming;
+        private ArrayDeque<List<ByteBuffer>> pushes;
+        private Runnable unsubscribe;
+
+        Connection(IoLoop loop, SocketChannel channel, SSLEngine engine) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isReadable() && !read()) {
+                    close();
+                    return;
+                }
+                if (key.isWritable() && netOut != null && !flush()) {
+                    updateInterest();
+                    return;
+                }
+                pump();
+            } catch (IOException | RuntimeException e) {
+                error(SERVE_ERRORS, "error serving client", e);
+                close();
+            }
+        }
+
+        /**
+         * Reads what the socket has; returns false once the client has closed.
+         */
+        private boolean read() throws IOException {
+            if (netIn == null) {
+                netIn = pool.acquire();
+            }
+            int n = channel.read(netIn);
+            if (n < 0) {
+                DISCONNECTED.increment();
+                return false;
+            }
+            if (n > 0) {
+                lastActive = System.currentTimeMillis();
+            }
+            return true;
+        }
+
+        /**
+         * Moves the connection forward as far as it can without blocking:
+         * handshake steps, unwrapping, framing and writing the response.
+         */
+        private void pump() throws IOException {
+            while (!closed && !runningTasks) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    if (!wrap(EMPTY)) break;
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    if (!unwrap()) break;
+                    continue;
+                }
+
+                if (!handshaken) {
+                    handshaken = true;
+                    TLS_HANDSHAKE.recordSince(acceptedAt);
+                }
+
+                boolean progress = false;
+                if (netIn != null && netIn.position() > 0) {
+                    progress = unwrap();
+                }
+                if (streaming && appIn != null) {
+                    // a subscriber sends nothing more; ignore whatever arrives
+                    appIn.clear();
+                }
+                if (!busy && appIn != null && appIn.position() > 0) {
+                    progress |= dispatch();
+                }
+                if (appOut != null) {
+                    if (!wrap(appOut)) break;
+                    pool.release(appOut);
+                    appOut = nextOut();
+                    if (closeAfterWrite && appOut == null) {
+                        close();
+                        return;
+                    }
+                    progress = true;
+                }
+                if (!progress) break;
+            }
+
+            if (!closed) {
+                releaseDrained();
+                updateInterest();
+            }
+        }
+
+        /**
+         * The next chunk to wrap: the rest of the current response, then
+         * the next queued push.
+         */
+        private ByteBuffer nextOut() {
+            if (appOutRest.isEmpty() && pushes != null && !pushes.isEmpty()) {
+                appOutRest.addAll(pushes.poll());
+            }
+            return appOutRest.poll();
+        }
+
+        /**
+         * Unwraps one TLS record from netIn into appIn. Returns false when
+         * more ciphertext is needed.
+         */
+        private boolean unwrap() throws IOException {
+            if (netIn == null) {
+                netIn = pool.acquire();
+            }
+            if (appIn == null) {
+                appIn = pool.acquire();
+            }
+
+            HandshakeStatus before = engine.getHandshakeStatus();
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, appSize);
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.capacity() < packetSize) {
+                        netIn = grow(netIn, packetSize);
+                    }
+                    return false;
+                case CLOSED:
+                    close();
+                    return false;
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                        || result.getHandshakeStatus() != before;
+            }
+        }
+
+        /**
+         * Wraps all of src and writes it out. Returns false if the socket
+         * could not take everything yet; OP_WRITE picks it up from there.
+         */
+        private boolean wrap(ByteBuffer src) throws IOException {
+            while (true) {
+                if (netOut == null) {
+                    netOut = pool.acquire();
+                }
+                SSLEngineResult result = engine.wrap(src, netOut);
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (!flush()) return false;
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close();
+                    return false;
+                }
+                if (!flush()) return false;
+                if (!src.hasRemaining()) return true;
+            }
+        }
+
+        /**
+         * Writes pending ciphertext; returns true once netOut is empty.
+         */
+        private boolean flush() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            boolean done = !netOut.hasRemaining();
+            netOut.compact();
+            if (done) {
+                pool.release(netOut);
+                netOut = null;
+            }
+            return done;
+        }
+
+        /**
+         * Frames the next request out of appIn and hands it to a worker.
+         * Returns false if appIn does not hold a whole request yet.
+         */
+        private boolean dispatch() throws IOException {
+            int end = appIn.position();
+
+            if (mode == MODE_UNKNOWN) {
+                if (binaryProtocol && (appIn.get(0) & 0xff) == BinaryCodec.MAGIC) {
+                    if (end < 3) return false;
+                    int offered = appIn.get(1) & 0xff;
+                    if (offered < 1 || appIn.get(2) != '\n') {
+                        throw new InvalidObjectException("bad binary protocol hello");
+                    }
+                    int version = Math.min(offered, BinaryCodec.VERSION);
+                    consume(3);
+                    mode = MODE_BINARY;
+                    appOut = ByteBuffer.wrap(new byte[] {(byte) BinaryCodec.MAGIC, (byte) version});
+                    BINARY_CLIENTS.increment();
+                    return true;
+                }
+                mode = MODE_JSON;
+            }
+
+            JSONObject message;
+            if (mode == MODE_BINARY) {
+                if (end < 5) return false;
+                int length = appIn.getInt(1);
+                if (length < 0 || length > BinaryCodec.MAX_FRAME) {
+                    throw new InvalidObjectException("bad frame length " + length);
+                }
+                if (end < 5 + length) return false;
+
+                // decode in place from the plaintext buffer
+                ByteBuffer payload = appIn.duplicate();
+                payload.limit(5 + length).position(5);
+                message = BinaryCodec.decode(appIn.get(0), payload);
+                consume(5 + length);
+            } else {
+                int newline = -1;
+                for (int i = scanned; i < end; i++) {
+                    if (appIn.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    if (end > BinaryCodec.MAX_FRAME) {
+                        throw new InvalidObjectException("request line too long");
+                    }
+                    scanned = end;
+                    return false;
+                }
+
+                ByteBuffer line = appIn.duplicate();
+                line.limit(newline).position(0);
+                String json = StandardCharsets.UTF_8.decode(line).toString().trim();
+                consume(newline + 1);
+                if (json.isEmpty()) {
+                    return true;
+                }
+                message = JsonIO.readObject(json);
+            }
+
+            submit(message);
+            return true;
+        }
+
+        /**
+         * Drops the first n plaintext bytes, keeping what follows.
+         */
+        private void consume(int n) {
+            appIn.flip();
+            appIn.position(n);
+            appIn.compact();
+            scanned = 0;
+        }
+
+        private void submit(JSONObject message) {
+            busy = true;
+            int encoding = mode;
+
+            workers.execute(() -> {
+                List<ByteBuffer> response = null;
+                Subscription subscription = null;
+                try {
+                    JSONSerializable reply = handler.handle(message);
+                    if (reply != null) {
+                        response = encode(reply, encoding);
+                    }
+                    if (reply instanceof Subscription) {
+                        subscription = (Subscription) reply;
+                    }
+                } catch (Exception e) {
+                    error(HANDLER_ERRORS, "error handling message", e);
+                }
+
+                List<ByteBuffer> out = response;
+                Subscription stream = subscription;
+                loop.execute(() -> onResponse(out, stream));
+            });
+        }
+
+        private void onResponse(List<ByteBuffer> response, Subscription subscription) {
+            if (closed) {
+                release(response);
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+
+            // drop the connection if the client sent something we cannot answer
+            if (response == null) {
+                close();
+                return;
+            }
+            appOutRest.addAll(response);
+            appOut = appOutRest.poll();
+            if (subscription != null) {
+                startStream(subscription);
+            } else {
+                busy = false;
+                closeAfterWrite = !keepAlive;
+            }
+            try {
+                pump();
+            } catch (IOException | RuntimeException e) {
+                error(SERVE_ERRORS, "error serving client", e);
+                close();
+            }
+        }
+
+        /**
+         * Turns this connection into a push stream. busy stays set so no
+         * further request is read; the subscription is opened on a worker
+         * because it reads the user's backlog from the board.
+         */
+        private void startStream(Subscription subscription) {
+            streaming = true;
+            pushes = new ArrayDeque<>();
+            int encoding = mode;
+            SUBSCRIPTIONS.increment();
+
+            workers.execute(() -> {
+                Runnable cancel = subscription.open(message -> {
+                    try {
+                        List<ByteBuffer> frame = encode(message, encoding);
+                        loop.execute(() -> push(frame));
+                    } catch (IOException e) {
+                        error(PUSH_ERRORS, "error encoding push", e);
+                    }
+                });
+                loop.execute(() -> {
+                    if (closed) {
+                        cancel.run();
+                    } else {
+                        unsubscribe = cancel;
+                    }
+                });
+            });
+        }
+
+        /**
+         * Queues a pushed message behind anything still being written.
+         */
+        private void push(List<ByteBuffer> frame) {
+            if (closed) {
+                release(frame);
+                return;
+            }
+            if (appOut == null) {
+                appOutRest.addAll(frame);
+                appOut = appOutRest.poll();
+            } else if (pushes.size() >= MAX_PENDING_PUSHES) {
+                release(frame);
+                LAGGING_CLOSED.increment();
+                close();
+                return;
+            } else {
+                pushes.add(frame);
+            }
+            lastActive = System.currentTimeMillis();
+            try {
+                pump();
+            } catch (IOException | RuntimeException e) {
+                error(SERVE_ERRORS, "error serving client", e);
+                close();
+            }
+        }
+
+        /**
+         * Runs the engine's handshake tasks on a worker so the loop keeps serving others.
+         */
+        private void runDelegatedTasks() {
+            runningTasks = true;
+            updateInterest();
+
+            workers.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(() -> {
+                    if (closed) return;
+                    runningTasks = false;
+                    try {
+                        pump();
+                    } catch (IOException | RuntimeException e) {
+                        error(HANDSHAKE_ERRORS, "error during TLS handshake", e);
+                        close();
+                    }
+                });
+            });
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) return;
+            int ops = 0;
+            if ((!busy || streaming) && !runningTasks) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (netOut != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Gives empty buffers back to the pool between requests.
+         */
+        private void releaseDrained() {
+            if (netIn != null && netIn.position() == 0) {
+                pool.release(netIn);
+                netIn = null;
+            }
+            if (appIn != null && appIn.position() == 0) {
+                pool.release(appIn);
+                appIn = null;
+            }
+        }
+
+        /**
+         * Replaces a full buffer with a larger heap buffer holding the same bytes.
+         */
+        private ByteBuffer grow(ByteBuffer buffer, int extra) throws IOException {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+            if (capacity > BinaryCodec.MAX_FRAME + extra) {
+                throw new InvalidObjectException("request too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            return bigger;
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (unsubscribe != null) {
+                unsubscribe.run();
+            }
+
+            // best-effort close_notify; the client may already be gone
+            try {
+                engine.closeOutbound();
+                ByteBuffer out = ByteBuffer.allocate(packetSize);
+                engine.wrap(EMPTY, out);
+                out.flip();
+                channel.write(out);
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                error(SERVE_ERRORS, "error closing client", e);
+            }
+
+            pool.release(netIn);
+            pool.release(appIn);
+            pool.release(netOut);
+            pool.release(appOut);
+            release(appOutRest);
+            appOutRest.clear();
+            if (pushes != null) {
+                for (List<ByteBuffer> frame : pushes) {
+                    release(frame);
+                }
+            }
+            netIn = appIn = netOut = appOut = null;
+            pushes = null;
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an error and prints it only in debug mode.
+     */
+    private void error(Metrics.Counter counter, String what, Exception e) {
+        counter.increment();
+        if (debug) {
+            System.out.println(what + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encodes a response the way the connection speaks: one JSON line, or a
+     * binary frame after the hello. The bytes go straight into pooled
+     * buffers, which the connection releases as it wraps them.
+     */
+    private List<ByteBuffer> encode(JSONSerializable reply, int mode) throws IOException {
+        ChunkStream out = new ChunkStream(pool);
+        try {
+            if (mode == MODE_BINARY) {
+                JSONObject obj = (JSONObject) reply.toJSONType();
+                out.write(new byte[] {BinaryCodec.typeCode(obj), 0, 0, 0, 0});
+                BinaryCodec.encode(obj, out);
+                List<ByteBuffer> chunks = out.chunks();
+                // the length goes in once the payload is written
+                chunks.get(0).putInt(1, (int) (out.size() - 5));
+                return chunks;
+            }
+
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            if (reply instanceof ResponseMessage) {
+                ((ResponseMessage) reply).writeTo(writer);
+            } else {
+                writer.write(reply.serialize().replace("\n", "").replace("\r", "").trim());
+            }
+            writer.write('\n');
+            writer.flush();
+            return out.chunks();
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private void release(Iterable<ByteBuffer> buffers) {
+        if (buffers == null) return;
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * An OutputStream that fills pooled buffers one after another instead
+     * of growing an array.
+     */
+    private static final class ChunkStream extends OutputStream {
+        private final BufferPool pool;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+        private long size;
+
+        ChunkStream(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void write(int b) {
+            room().put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                ByteBuffer buffer = room();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        private ByteBuffer room() {
+            if (current == null || !current.hasRemaining()) {
+                current = pool.acquire();
+                chunks.add(current);
+            }
+            return current;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * The chunks written, flipped for reading. Call once, when done writing.
+         */
+        List<ByteBuffer> chunks() {
+            for (ByteBuffer chunk : chunks) {
+                chunk.flip();
+            }
+            return chunks;
+        }
+
+        /**
+         * Gives every chunk back to the pool, for when encoding failed.
+         */
+        void release() {
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The per-user index used when post bodies live in a SegmentStore. For each
+ * post only its sequence id, segment ref, record length and time stay on
+ * the heap, held in parallel primitive arrays ordered by sequence id: 28
+ * bytes a post instead of a PostObject and its strings.
+ *
+ * Locking works like Mailbox: readers share, a post to one user never waits
+ * on another user's index.
+ */
+public class PostIndex {
+
+    /**
+     * Index entries copied out of the index, oldest first.
+     */
+    public static class Page {
+        public final long[] refs;
+        public final int[] lengths;
+        public final int size;
+
+        Page(long[] refs, int[] lengths, int size) {
+            this.refs = refs;
+            this.lengths = lengths;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Receives the entries of an index, see forEach.
+     */
+    public interface EntryVisitor {
+        void visit(long seq, long ref, int length);
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] seqs = new long[4];
+    private long[] refs = new long[4];
+    private int[] lengths = new int[4];
+    private long[] times = new long[4];
+    private int size;
+
+    /**
+     * Inserts an entry in sequence order; an append in the common case. An
+     * entry with the same sequence id is replaced, which is how a record
+     * copied to another segment by the compactor is picked up on a rescan.
+     */
+    public void add(long seq, long ref, int length, long time) {
+        lock.writeLock().lock();
+        try {
+            int i = size;
+            while (i > 0 && seqs[i - 1] > seq) {
+                i--;
+            }
+            if (i > 0 && seqs[i - 1] == seq) {
+                refs[i - 1] = ref;
+                lengths[i - 1] = length;
+                times[i - 1] = time;
+                return;
+            }
+
+            if (size == seqs.length) {
+                int capacity = size + (size >> 1);
+                seqs = Arrays.copyOf(seqs, capacity);
+                refs = Arrays.copyOf(refs, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            if (i < size) {
+                System.arraycopy(seqs, i, seqs, i + 1, size - i);
+                System.arraycopy(refs, i, refs, i + 1, size - i);
+                System.arraycopy(lengths, i, lengths, i + 1, size - i);
+                System.arraycopy(times, i, times, i + 1, size - i);
+            }
+            seqs[i] = seq;
+            refs[i] = ref;
+            lengths[i] = length;
+            times[i] = time;
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every entry with seq <= upTo.
+     *
+     * @return the number of entries removed
+     */
+    public int removeThrough(long upTo) {
+        lock.writeLock().lock();
+        try {
+            return removeFirst(firstAfter(upTo));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest entries until at most max are left.
+     *
+     * @return the number of entries removed
+     */
+    public int trimTo(int max) {
+        lock.writeLock().lock();
+        try {
+            return removeFirst(Math.max(0, size - max));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every entry stored before the given time.
+     *
+     * @return the number of entries removed
+     */
+    public int removeOlderThan(long time) {
+        lock.writeLock().lock();
+        try {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (times[i] >= time) {
+                    seqs[kept] = seqs[i];
+                    refs[kept] = refs[i];
+                    lengths[kept] = lengths[i];
+                    times[kept] = times[i];
+                    kept++;
+                }
+            }
+            int removed = size - kept;
+            size = kept;
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the first count entries. Caller must hold the write lock.
+     */
+    private int removeFirst(int count) {
+        if (count == 0) return 0;
+        System.arraycopy(seqs, count, seqs, 0, size - count);
+        System.arraycopy(refs, count, refs, 0, size - count);
+        System.arraycopy(lengths, count, lengths, 0, size - count);
+        System.arraycopy(times, count, times, 0, size - count);
+        size -= count;
+        return count;
+    }
+
+    /**
+     * Points an entry at a copy of its record. Nothing changes if the entry
+     * was removed or moved since oldRef was read.
+     *
+     * @return true if the entry now points at newRef
+     */
+    public boolean relocate(long seq, long oldRef, long newRef, int newLength) {
+        lock.writeLock().lock();
+        try {
+            int i = firstAfter(seq - 1);
+            if (i == size || seqs[i] != seq || refs[i] != oldRef) return false;
+            refs[i] = newRef;
+            lengths[i] = newLength;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the visitor for every entry, oldest first, under the read lock.
+     */
+    public void forEach(EntryVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(seqs[i], refs[i], lengths[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to limit entries with since < seq <= upTo, oldest first.
+     * A limit of 0 means no limit.
+     */
+    public Page range(long since, long upTo, int limit) {
+        lock.readLock().lock();
+        try {
+            int from = firstAfter(since);
+            int to = from;
+            while (to < size && seqs[to] <= upTo && (limit <= 0 || to - from < limit)) {
+                to++;
+            }
+            return new Page(Arrays.copyOfRange(refs, from, to), Arrays.copyOfRange(lengths, from, to), to - from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Binary search for the index of the first entry with seq > since.
+     * Caller must hold the lock.
+     */
+    private int firstAfter(long since) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (seqs[mid] <= since) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns an independent copy of this index.
+     */
+    public PostIndex copy() {
+        lock.readLock().lock();
+        try {
+            PostIndex copy = new PostIndex();
+            copy.seqs = Arrays.copyOf(seqs, Math.max(size, 4));
+            copy.refs = Arrays.copyOf(refs, Math.max(size, 4));
+            copy.lengths = Arrays.copyOf(lengths, Math.max(size, 4));
+            copy.times = Arrays.copyOf(times, Math.max(size, 4));
+            copy.size = size;
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the entries as a count followed by (seq, ref, length, time) tuples.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(seqs[i]);
+                out.writeLong(refs[i]);
+                out.writeInt(lengths[i]);
+                out.writeLong(times[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an index written by writeTo. Snapshots older than version 2 have
+     * no times; their entries get loadTime instead.
+     */
+    public static PostIndex readFrom(DataInput in, int version, long loadTime) throws IOException {
+        PostIndex index = new PostIndex();
+        int size = in.readInt();
+        index.seqs = new long[Math.max(size, 4)];
+        index.refs = new long[Math.max(size, 4)];
+        index.lengths = new int[Math.max(size, 4)];
+        index.times = new long[Math.max(size, 4)];
+        for (int i = 0; i < size; i++) {
+            index.seqs[i] = in.readLong();
+            index.refs[i] = in.readLong();
+            index.lengths[i] = in.readInt();
+            index.times[i] = version >= 2 ? in.readLong() : loadTime;
+        }
+        index.size = size;
+        return index;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
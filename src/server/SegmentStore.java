@@ -0,0 +1,533 @@
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import common.PostObject;
+import merrimackutil.json.types.JSONObject;
+import util.BinaryCodec;
+
+/**
+ * Append-only, memory-mapped post storage.
+ *
+ * Posts are written to fixed-size segment files (board.json.seg.N) that are
+ * mapped into memory, so bodies live in the page cache instead of the heap
+ * and are read back only when a mailbox is fetched. A post is addressed by a
+ * ref packing its segment number and offset; callers keep (ref, length) in
+ * their own index.
+ *
+ * Record layout: length of user and post (int), CRC32 of the rest (int),
+ * seq (long), user length (short), user (UTF-8), then the post in
+ * BinaryCodec form. A zero length marks the end of a segment's data. On
+ * open, segments are scanned record by record and the first record whose
+ * CRC does not match is treated as a write torn by a crash; it and anything
+ * after it are cleared.
+ *
+ * Segments other than the current one can be deleted once the board has
+ * moved or dropped every record in them; their slots in the segment table
+ * stay empty and the numbers are never reused.
+ *
+ * Writes are serialized, so records land in the file in the order they were
+ * appended. Durability follows the same SyncPolicy as AppendLog; in GROUP
+ * mode one flusher thread forces the mapping for everyone waiting.
+ */
+public class SegmentStore implements Closeable {
+
+    /**
+     * Receives each record found while scanning the segments.
+     */
+    public interface RecordVisitor {
+        void visit(long seq, String user, long ref, int length);
+    }
+
+    // length + crc + seq + user length
+    private static final int HEADER = 4 + 4 + 8 + 2;
+
+    private final File base;
+    private final int segmentSize;
+    private final AppendLog.SyncPolicy policy;
+    private final ScheduledExecutorService syncTimer;
+
+    // mapped segments by number, null once deleted; replaced wholesale when a segment is added or deleted
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    // write position, guarded by this
+    private boolean scanned;
+    private int current;
+    private int position;
+    private int unsynced;
+    private int dirtyFrom;
+
+    // group commit state, guarded by groupLock
+    private final Object groupLock = new Object();
+    private long written;
+    private long synced;
+    private long failedThrough;
+    private IOException failure;
+    private boolean closing;
+    private Thread flusher;
+
+    /**
+     * @param base board file; segments are created next to it
+     * @param segmentSize bytes per segment file
+     * @param policy when appended records are forced to disk
+     */
+    public SegmentStore(File base, int segmentSize, AppendLog.SyncPolicy policy) throws IOException {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+
+        for (int number : existingSegments()) {
+            map(number);
+        }
+        if (segments.length == 0) {
+            map(0);
+        }
+        current = segments.length - 1;
+
+        if (policy.getMode() == AppendLog.SyncPolicy.Mode.INTERVAL) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "segment-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncTimer.scheduleAtFixedRate(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    System.err.println("[!] Failed to sync post segments: " + e.getMessage());
+                }
+            }, policy.getParam(), policy.getParam(), TimeUnit.MILLISECONDS);
+        } else {
+            syncTimer = null;
+        }
+
+        if (policy.getMode() == AppendLog.SyncPolicy.Mode.GROUP) {
+            flusher = new Thread(this::flushLoop, "segment-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Walks every stored record in write order, then sets the write
+     * position after the last good record. Only headers are read.
+     */
+    public int scan(RecordVisitor visitor) {
+        return scan(visitor, 0);
+    }
+
+    /**
+     * Like scan(visitor), but starts at a position returned by endRef(),
+     * skipping records an index checkpoint already covers.
+     */
+    public synchronized int scan(RecordVisitor visitor, long from) {
+        int count = 0;
+        MappedByteBuffer[] all = segments;
+
+        for (int number = segmentOf(from); number < all.length; number++) {
+            if (all[number] == null) continue;
+            ByteBuffer segment = all[number].duplicate();
+            int offset = number == segmentOf(from) ? offsetOf(from) : 0;
+
+            while (offset + HEADER <= segmentSize) {
+                int length = segment.getInt(offset);
+                if (length == 0) break;
+
+                if (length < 0 || offset + HEADER + length > segmentSize || !crcMatches(segment, offset, length)) {
+                    System.err.println("[!] Clearing torn record in " + segmentFile(number).getName() + " at " + offset);
+                    clear(all[number], offset);
+                    break;
+                }
+
+                long seq = segment.getLong(offset + 8);
+                String user = readUser(segment, offset);
+                visitor.visit(seq, user, ref(number, offset), HEADER + length);
+                count++;
+                offset += HEADER + length;
+            }
+
+            current = number;
+            position = offset;
+        }
+        dirtyFrom = current;
+        scanned = true;
+        return count;
+    }
+
+    /**
+     * Appends a post and returns its ref once it is as durable as the
+     * policy asks for. scan() must have run first so the write position
+     * is known.
+     */
+    public long append(PostObject post) throws IOException {
+        return appendAll(List.of(post))[0];
+    }
+
+    /**
+     * Appends several posts back to back and returns their refs once all of
+     * them are durable: one force under ALWAYS, one wait under GROUP.
+     */
+    public long[] appendAll(List<PostObject> posts) throws IOException {
+        if (!scanned) {
+            throw new IllegalStateException("segments must be scanned before appending");
+        }
+        byte[][] users = new byte[posts.size()][];
+        byte[][] bodies = new byte[posts.size()][];
+        for (int i = 0; i < users.length; i++) {
+            PostObject post = posts.get(i);
+            users[i] = post.getUser().getBytes(StandardCharsets.UTF_8);
+            bodies[i] = BinaryCodec.encode((JSONObject) post.toJSONType());
+            int recordSize = HEADER + users[i].length + bodies[i].length;
+            if (recordSize > segmentSize) {
+                throw new IOException("post of " + recordSize + " bytes does not fit in a segment");
+            }
+        }
+
+        long[] refs = new long[users.length];
+        long end;
+        synchronized (this) {
+            int firstSegment = current;
+            int firstPosition = position;
+            for (int i = 0; i < refs.length; i++) {
+                refs[i] = write(posts.get(i).getSeq(), users[i], bodies[i]);
+            }
+            unsynced += refs.length;
+            end = ((long) current << 32) | position;
+
+            if (policy.getMode() == AppendLog.SyncPolicy.Mode.ALWAYS) {
+                if (current == firstSegment) {
+                    segments[current].force(firstPosition, position - firstPosition);
+                    unsynced = 0;
+                } else {
+                    sync();
+                }
+            } else if (policy.getMode() == AppendLog.SyncPolicy.Mode.BATCH && unsynced >= policy.getParam()) {
+                sync();
+            }
+        }
+
+        if (policy.getMode() == AppendLog.SyncPolicy.Mode.GROUP) {
+            awaitGroupCommit(end);
+        }
+        return refs;
+    }
+
+    /**
+     * Writes one record at the current position, moving to a new segment
+     * if it does not fit. Caller must hold the lock.
+     */
+    private long write(long seq, byte[] user, byte[] body) throws IOException {
+        int recordSize = HEADER + user.length + body.length;
+        if (position + recordSize > segmentSize) {
+            map(segments.length);
+            current = segments.length - 1;
+            position = 0;
+        }
+
+        ByteBuffer segment = segments[current].duplicate();
+        segment.position(position);
+        segment.putInt(0); // length goes in last so a torn write reads as the end
+        segment.putInt(0);
+        segment.putLong(seq);
+        segment.putShort((short) user.length);
+        segment.put(user);
+        segment.put(body);
+
+        int bodyLength = recordSize - HEADER;
+        segment.putInt(position + 4, crc(segment, position, bodyLength));
+        segment.putInt(position, bodyLength);
+
+        long ref = ref(current, position);
+        position += recordSize;
+        return ref;
+    }
+
+    /**
+     * Total length of the record at ref, header included.
+     */
+    public int lengthOf(long ref) {
+        return HEADER + segments[segmentOf(ref)].getInt(offsetOf(ref));
+    }
+
+    /**
+     * Reads a post back from its ref and record length.
+     */
+    public PostObject read(long ref, int length) throws IOException {
+        MappedByteBuffer mapped = segments[segmentOf(ref)];
+        if (mapped == null) {
+            throw new IOException("segment " + segmentOf(ref) + " was deleted");
+        }
+        ByteBuffer segment = mapped.duplicate();
+        int offset = offsetOf(ref);
+        int userLength = segment.getShort(offset + HEADER - 2);
+
+        segment.limit(offset + length).position(offset + HEADER + userLength);
+        PostObject post = new PostObject();
+        post.deserialize(BinaryCodec.decode((byte) 0, segment.slice()));
+        return post;
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            for (int i = dirtyFrom; i <= current; i++) {
+                if (segments[i] != null) {
+                    segments[i].force();
+                }
+            }
+            dirtyFrom = current;
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Blocks until the flusher has forced everything up to end.
+     */
+    private void awaitGroupCommit(long end) throws IOException {
+        synchronized (groupLock) {
+            if (closing) {
+                throw new IOException("post segments are closed");
+            }
+            written = Math.max(written, end);
+            groupLock.notifyAll();
+
+            while (synced < end) {
+                if (end <= failedThrough) {
+                    throw new IOException("group commit failed", failure);
+                }
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for group commit", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flusher thread: forces the mapping once for every writer waiting. A
+     * failed force fails those writers instead of acknowledging them; the
+     * next writer's commit forces their records again.
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            synchronized (groupLock) {
+                while (written <= Math.max(synced, failedThrough) && !closing) {
+                    try {
+                        groupLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (written <= Math.max(synced, failedThrough)) {
+                    return; // closing and nothing left to force
+                }
+                target = written;
+            }
+
+            IOException error = null;
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("[!] Failed to sync post segments: " + e.getMessage());
+                error = e;
+            }
+
+            synchronized (groupLock) {
+                if (error == null) {
+                    synced = Math.max(synced, target);
+                } else {
+                    failedThrough = Math.max(failedThrough, target);
+                    failure = error;
+                }
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdownNow();
+        }
+        if (flusher != null) {
+            synchronized (groupLock) {
+                closing = true;
+                groupLock.notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+    }
+
+    /**
+     * The position just after the last record written, as a ref.
+     */
+    public synchronized long endRef() {
+        return ref(current, position);
+    }
+
+    /**
+     * Whether a position from endRef() lies within the segments on disk.
+     */
+    public boolean hasPosition(long ref) {
+        return segmentOf(ref) < segments.length && segments[segmentOf(ref)] != null
+            && offsetOf(ref) >= 0 && offsetOf(ref) <= segmentSize;
+    }
+
+    /**
+     * The number of the segment being written to; it is never deleted.
+     */
+    public synchronized int currentSegment() {
+        return current;
+    }
+
+    /**
+     * Whether segment number n exists and has not been deleted.
+     */
+    public boolean hasSegment(int number) {
+        MappedByteBuffer[] all = segments;
+        return number < all.length && all[number] != null;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Deletes a segment that no index refers to any more. The file goes at
+     * once; the mapping is released when the last reader drops it.
+     */
+    public synchronized void delete(int number) throws IOException {
+        if (number >= current || segments[number] == null) {
+            throw new IllegalArgumentException("segment " + number + " cannot be deleted");
+        }
+        MappedByteBuffer[] remaining = segments.clone();
+        remaining[number] = null;
+        segments = remaining;
+        if (!segmentFile(number).delete()) {
+            throw new IOException("could not delete " + segmentFile(number).getName());
+        }
+    }
+
+    /**
+     * True if nothing has been written yet.
+     */
+    public synchronized boolean isEmpty() {
+        return current == 0 && position == 0;
+    }
+
+    static int segmentOf(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    static int offsetOf(long ref) {
+        return (int) ref;
+    }
+
+    private static long ref(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * Maps segment file number n (creating it at full size) and adds it to
+     * the segment table. Caller must hold the monitor or be the constructor.
+     */
+    private void map(int number) throws IOException {
+        File file = segmentFile(number);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            MappedByteBuffer[] grown = new MappedByteBuffer[number + 1];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            grown[number] = mapped;
+            segments = grown;
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(base.getPath() + ".seg." + number);
+    }
+
+    /**
+     * Lists the numbers of the segment files next to the board, sorted.
+     */
+    private List<Integer> existingSegments() {
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".seg.";
+        List<Integer> numbers = new ArrayList<>();
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    numbers.add(Integer.parseInt(f.getName().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static String readUser(ByteBuffer segment, int offset) {
+        int userLength = segment.getShort(offset + HEADER - 2);
+        byte[] user = new byte[userLength];
+        segment.get(offset + HEADER, user);
+        return new String(user, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * CRC32 over everything after the crc field: seq, user and body.
+     */
+    private static int crc(ByteBuffer segment, int offset, int length) {
+        ByteBuffer covered = segment.duplicate();
+        covered.limit(offset + HEADER + length).position(offset + 8);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private static boolean crcMatches(ByteBuffer segment, int offset, int length) {
+        return segment.getInt(offset + 4) == crc(segment, offset, length);
+    }
+
+    /**
+     * Zeroes a segment from offset to the end so stale bytes are never read as records.
+     */
+    private static void clear(MappedByteBuffer segment, int offset) {
+        ByteBuffer tail = segment.duplicate();
+        tail.position(offset);
+        while (tail.remaining() >= 8) {
+            tail.putLong(0);
+        }
+        while (tail.hasRemaining()) {
+            tail.put((byte) 0);
+        }
+        segment.force();
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and checks session tokens for authenticated users.
+ *
+ * A successful Authenticate gets a random 256-bit token that is held in an
+ * expiring in-memory cache. Later Post and GetMessage requests present the
+ * token instead of re-running scrypt and TOTP, so checking it is a single
+ * hash map lookup.
+ */
+public class SessionManager {
+
+    /**
+     * A live session: who it belongs to and when it stops being valid.
+     */
+    private static class Session {
+        final String user;
+        final long expiresAt;
+
+        Session(String user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param ttlSeconds how long a token stays valid after it is issued
+     */
+    public SessionManager(int ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000L;
+
+        // drop expired tokens in the background so the cache stays small
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, ttlSeconds / 2);
+        sweeper.scheduleAtFixedRate(this::purgeExpired, period, period, TimeUnit.SECONDS);
+
+        Metrics.gauge("bbs_sessions", "Session tokens currently held, including expired ones not yet swept.",
+            sessions::size);
+    }
+
+    /**
+     * Creates a new token for a user who just authenticated.
+     */
+    public String issue(String user) {
+        byte[] raw = new byte[32];
+        secureRandom.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        sessions.put(token, new Session(user, System.currentTimeMillis() + ttlMillis));
+        return token;
+    }
+
+    /**
+     * Returns the user a token belongs to, or null if it is unknown or expired.
+     */
+    public String validate(String token) {
+        if (token == null) return null;
+
+        Session session = sessions.get(token);
+        if (session == null) return null;
+
+        if (session.expiresAt < System.currentTimeMillis()) {
+            sessions.remove(token, session);
+            return null;
+        }
+        return session.user;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expiresAt < now);
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import common.PostObject;
+import common.ResponseMessage;
+import common.StatusMessage;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * The reply to a Subscribe. On the wire it is a plain "Subscribed." status;
+ * a transport that can hold the connection open (NioServer) then calls open
+ * to stream the user's posts after it.
+ *
+ * open sends the posts after since as one GetResponseMessage, then one
+ * GetResponseMessage per post as BulletinBoard stores it. The listener is
+ * registered before the backlog is read, and posts it sees in the meantime
+ * are held back until the backlog has gone out, so nothing is lost or sent
+ * twice. BulletinBoard only announces a post once it is below the visible
+ * watermark that bounds the backlog, and announces posts in seq order, so
+ * every push is the next seq the user can see: a client that resumes with
+ * since set to the last seq it received never skips a post.
+ */
+public class Subscription implements JSONSerializable {
+
+    private final BulletinBoard board;
+    private final String user;
+    private final long since;
+
+    public Subscription(BulletinBoard board, String user, long since) {
+        this.board = board;
+        this.user = user;
+        this.since = since;
+    }
+
+    /**
+     * Starts streaming to sink and returns what to run when the connection
+     * closes. sink is called with the board's posting threads and must not
+     * block.
+     */
+    public Runnable open(Consumer<JSONSerializable> sink) {
+        Object lock = new Object();
+        List<PostObject> early = new ArrayList<>();
+        boolean[] ready = new boolean[1];
+        long[] sent = new long[1];
+
+        Consumer<PostObject> listener = post -> {
+            synchronized (lock) {
+                if (!ready[0]) {
+                    early.add(post);
+                } else if (post.getSeq() > sent[0]) {
+                    sent[0] = post.getSeq();
+                    sink.accept(new ResponseMessage(List.of(post), post.getSeq(), false));
+                }
+            }
+        };
+        board.subscribe(user, listener);
+
+        List<PostObject> backlog = board.getPosts(user, since, 0);
+        synchronized (lock) {
+            // anything at or below the last backlog post was visible when it was read
+            sent[0] = backlog.isEmpty() ? since : backlog.get(backlog.size() - 1).getSeq();
+            if (!backlog.isEmpty()) {
+                sink.accept(new ResponseMessage(backlog, sent[0], false));
+            }
+            for (PostObject post : early) {
+                if (post.getSeq() > sent[0]) {
+                    sent[0] = post.getSeq();
+                    sink.accept(new ResponseMessage(List.of(post), post.getSeq(), false));
+                }
+            }
+            early.clear();
+            ready[0] = true;
+        }
+        return () -> board.unsubscribe(user, listener);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    @Override
+    public JSONType toJSONType() {
+        return new StatusMessage(true, "Subscribed.").toJSONType();
+    }
+
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        throw new InvalidObjectException("a subscription is only created by the server");
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which (user, time step) TOTP codes were recently accepted so a
+ * code cannot be replayed inside its skew window (RFC 6238 section 5.2).
+ *
+ * The cache is one direct-mapped table per time step, kept in a ring of
+ * BUCKETS buckets indexed by step. Each slot holds a 64-bit entry: the low
+ * 16 bits of the step over a 48-bit fingerprint of the user. A claim is a
+ * single compare-and-set on the user's slot, so concurrent Authenticate
+ * calls never lock. When the ring comes back to a bucket four steps later,
+ * its old entries no longer match the step and are overwritten in place.
+ * Nothing is ever allocated after construction, so the memory stays at
+ * BUCKETS * slots longs however many users log in.
+ *
+ * Two live users can share a slot. The later one then cannot be recorded,
+ * and its claim is reported as fresh; the per-user last accepted step in
+ * UserRecord still stops that code from being used twice.
+ */
+public class UsedCodeCache {
+
+    // steps -1, 0 and +1 of the skew window plus one being recycled
+    private static final int BUCKETS = 4;
+
+    private static final int STEP_BITS = 16;
+    private static final int FINGERPRINT_BITS = 64 - STEP_BITS;
+    private static final long FINGERPRINT_MASK = (1L << FINGERPRINT_BITS) - 1;
+
+    private final AtomicLongArray[] buckets = new AtomicLongArray[BUCKETS];
+    private final int mask;
+
+    /**
+     * @param slots slots per time step, rounded up to a power of two
+     */
+    public UsedCodeCache(int slots) {
+        int capacity = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new AtomicLongArray(capacity);
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Records that a user's code for a time step was used.
+     *
+     * @param fingerprint the user's fingerprint from fingerprint(String)
+     * @param step the time step the code matched
+     * @return false if the same user already used that step, true otherwise
+     */
+    public boolean claim(long fingerprint, long step) {
+        AtomicLongArray bucket = buckets[(int) (step & (BUCKETS - 1))];
+        int slot = (int) (fingerprint ^ (fingerprint >>> 29)) & mask;
+        long tag = step << FINGERPRINT_BITS;
+        long entry = tag | fingerprint;
+
+        while (true) {
+            long current = bucket.get(slot);
+            if (current == entry) return false;
+
+            // another user owns the slot for this step; leave it to the caller's step check
+            if (current != 0 && (current & ~FINGERPRINT_MASK) == tag) return true;
+
+            // empty or left over from an older step
+            if (bucket.compareAndSet(slot, current, entry)) return true;
+        }
+    }
+
+    public int capacity() {
+        return BUCKETS * (mask + 1);
+    }
+
+    /**
+     * A nonzero 48-bit FNV-1a hash of a username.
+     */
+    public static long fingerprint(String user) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < user.length(); i++) {
+            hash ^= user.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> FINGERPRINT_BITS)) & FINGERPRINT_MASK;
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -1,14 +1,16 @@
 package server;
 
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import merrimackutil.json.types.JSONObject;
+import java.util.concurrent.ConcurrentHashMap;
 import util.TotpVerifier;
 import util.EncryptionUtil;
 
@@ -21,26 +23,80 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 //import src.util.TotpVerifier; 
 //import src.util.CryptoUtils; 
 
+/**
+ * Stores user accounts. New accounts are appended to users.json.log so
+ * concurrent registrations share a group commit instead of each rewriting
+ * users.json; the log is folded back into users.json at startup.
+ * The in-memory index is a ConcurrentHashMap so lookups never block.
+ * Each account is held as a UserRecord with raw byte fields, so
+ * authentication compares bytes without decoding Base64 every time.
+ *
+ * The accounts can instead be kept in a compact binary snapshot
+ * (users.json.snap) that loads without JSON parsing; whichever of the two
+ * files is newer is loaded.
+ */
 public class UserDatabase {
+    private static final TypeReference<Map<String, Object>> USER_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    // per time step; 4 steps of 16k slots is 512 KB however many users log in
+    private static final int TOTP_CACHE_SLOTS = 1 << 14;
+
+    private static final LatencyHistogram SCRYPT_TIME = Metrics.histogram("bbs_scrypt_seconds",
+        "Time spent in one scrypt password hash.");
+    private static final LatencyHistogram TOTP_TIME = Metrics.histogram("bbs_totp_seconds",
+        "Time spent checking one TOTP code.");
+    private static final Metrics.Counter TOTP_REPLAYS = Metrics.counter("bbs_totp_replays_total",
+        "TOTP codes rejected because they were already used.");
+
     private final File userFile;
-    private final Map<String, Map<String, Object>> users = new HashMap<>();
+    private final File logFile;
+    private final File snapshotFile;
+    private final boolean binarySnapshot;
+    private final Map<String, UserRecord> users = new ConcurrentHashMap<>();
+    private final AppendLog<Map<String, Object>> log;
+    private final UsedCodeCache usedCodes = new UsedCodeCache(TOTP_CACHE_SLOTS);
 
 
-    public UserDatabase(String userFilePath) throws IOException {
+    /**
+     * @param userFilePath path of users.json; the log and binary snapshot go next to it
+     * @param syncPolicy how often new accounts in the log are fsynced
+     * @param binarySnapshot save accounts to the binary snapshot instead of users.json
+     */
+    public UserDatabase(String userFilePath, AppendLog.SyncPolicy syncPolicy, boolean binarySnapshot) throws IOException {
         this.userFile = new File(userFilePath);
+        this.logFile = new File(userFilePath + ".log");
+        this.snapshotFile = new File(userFilePath + ".snap");
+        this.binarySnapshot = binarySnapshot;
         loadUsers();
+        replayLog();
+        this.log = new AppendLog<>(logFile, syncPolicy);
+        Metrics.gauge("bbs_users", "Accounts held in memory.", users::size);
     }
 
    
     /**
-     * Loads the user JSON database from disk into memory using Jackson.
+     * Loads the user database from disk into memory: the binary snapshot if
+     * it is the newer file, otherwise users.json using Jackson.
      */
     private void loadUsers() throws IOException {
-        if (!userFile.exists()) {
-            userFile.createNewFile();
-            try (FileWriter writer = new FileWriter(userFile)) {
-                writer.write("{\"entries\": []}");
+        File source = BinarySnapshot.pick(userFile, snapshotFile);
+        if (source == null) {
+            saveUsers(); // create an empty database in the configured format
+            return;
+        }
+
+        if (source == snapshotFile) {
+            long start = System.currentTimeMillis();
+            try (DataInputStream in = BinarySnapshot.open(snapshotFile, "accounts")) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UserRecord record = UserRecord.readFrom(in);
+                    users.put(record.getUser(), record);
+                }
             }
+            System.out.println("[+] Loaded " + users.size() + " users from " + snapshotFile.getName()
+                + " in " + (System.currentTimeMillis() - start) + " ms.");
+            return;
         }
 
         ObjectMapper mapper = new ObjectMapper();
@@ -50,24 +106,76 @@ public class UserDatabase {
         List<Map<String, Object>> userList = (List<Map<String, Object>>) root.get("entries");
 
         for (Map<String, Object> userObj : userList) {
-            String username = (String) userObj.get("user");
-            users.put(username, userObj);
+            addFromJson(userObj);
         }
     }   
 
+    /**
+     * Adds an account read from users.json or its log, skipping a malformed one.
+     */
+    private void addFromJson(Map<String, Object> userObj) {
+        try {
+            UserRecord record = UserRecord.fromJson(userObj);
+            users.put(record.getUser(), record);
+        } catch (InvalidObjectException e) {
+            System.err.println("[!] Skipping " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Applies accounts logged since the last save, then folds them into
+     * users.json so the log starts empty.
+     */
+    private void replayLog() throws IOException {
+        int replayed = AppendLog.replay(logFile, USER_TYPE, this::addFromJson);
+
+        if (replayed > 0) {
+            System.out.println("[+] Replayed " + replayed + " users from " + logFile.getName());
+            saveUsers();
+        }
+        Files.deleteIfExists(logFile.toPath());
+    }
+
 
     /**
-     * Writes the in-memory users map back to disk.
+     * Writes the in-memory users map back to disk, in the configured format,
+     * and removes the file in the other format.
      */
     private void saveUsers() throws IOException {
+        if (binarySnapshot) {
+            List<UserRecord> all = new ArrayList<>(users.values());
+            BinarySnapshot.write(snapshotFile, "accounts", out -> {
+                out.writeInt(all.size());
+                for (UserRecord record : all) {
+                    record.writeTo(out);
+                }
+            });
+            Files.deleteIfExists(userFile.toPath());
+            return;
+        }
+
         // Create the wrapper object: { "entries": [...] }
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (UserRecord record : users.values()) {
+            entries.add(record.toJson());
+        }
         Map<String, Object> wrapper = new HashMap<>();
-        wrapper.put("entries", new ArrayList<>(users.values()));
+        wrapper.put("entries", entries);
 
         // Pretty print JSON using Jackson
         ObjectMapper mapper = new ObjectMapper();
         ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
         writer.writeValue(userFile, wrapper);
+        Files.deleteIfExists(snapshotFile.toPath());
+    }
+
+    /**
+     * Saves every account so the next start loads one file instead of
+     * replaying the log. The log is kept; replaying it again is harmless.
+     */
+    public void checkpoint() throws IOException {
+        saveUsers();
     }
 
 
@@ -78,10 +186,25 @@ public class UserDatabase {
         return users.containsKey(username);
     }
 
+    /**
+     * Returns the stored record for a user, or null if there is none.
+     */
+    private UserRecord getUser(String username) {
+        return users.get(username);
+    }
+
     /**
      * Creates a new user with a hashed password, salt, pubkey, and TOTP key.
      */
     public boolean createUser(String username, String password, String base64PublicKey) {
+        return createUser(username, password, base64PublicKey, null);
+    }
+
+    /**
+     * Creates a new user whose public key uses the given key wrap scheme
+     * (null for the original ElGamal scheme).
+     */
+    public boolean createUser(String username, String password, String base64PublicKey, String scheme) {
         if (userExists(username)) return false;
 
         try {
@@ -89,20 +212,26 @@ public class UserDatabase {
             byte[] salt = EncryptionUtil.generateRandomBytes(16);
 
             // === TODO: hash password with SCRYPT using parameters from spec
+            long start = System.nanoTime();
             byte[] hashedPassword = EncryptionUtil.scryptHash(password, salt);
+            SCRYPT_TIME.recordSince(start);
 
             // === TODO: generate random TOTP key (e.g., 160 bits)
             byte[] totpKey = EncryptionUtil.generateRandomBytes(20);
 
-            JSONObject userObj = new JSONObject();
-            userObj.put("user", username);
-            userObj.put("pass", Base64.getEncoder().encodeToString(hashedPassword));
-            userObj.put("salt", Base64.getEncoder().encodeToString(salt));
-            userObj.put("totp-key", Base64.getEncoder().encodeToString(totpKey));
-            userObj.put("pubkey", base64PublicKey);
+            UserRecord record = new UserRecord(username, hashedPassword, salt, totpKey,
+                Base64.getDecoder().decode(base64PublicKey), scheme);
 
-            users.put(username, userObj);
-            saveUsers();
+            // claim the name atomically; a concurrent create of the same user loses here
+            if (users.putIfAbsent(record.getUser(), record) != null) return false;
+
+            // the append waits for its group commit; undo the insert if it never lands
+            try {
+                log.append(record.toJson());
+            } catch (IOException e) {
+                users.remove(record.getUser(), record);
+                throw e;
+            }
 
             return true;
         } catch (Exception e) {
@@ -115,35 +244,43 @@ public class UserDatabase {
      * Returns the user's public key (base64).
      */
     public String getPublicKey(String username) {
-        if (!userExists(username)) return null;
-        return (String) users.get(username).get("pubkey");
+        UserRecord user = getUser(username);
+        if (user == null) return null;
+        return Base64.getEncoder().encodeToString(user.getPubkey());
+    }
+
+    /**
+     * Returns a short fingerprint of the user's public key that changes
+     * whenever the key does, or null if there is no such user.
+     */
+    public String getKeyVersion(String username) {
+        UserRecord user = getUser(username);
+        if (user == null) return null;
+        return user.getKeyVersion();
+    }
+
+    /**
+     * Returns the key wrap scheme id stored with the user's public key,
+     * or null for users created with the original ElGamal scheme.
+     */
+    public String getKeyScheme(String username) {
+        UserRecord user = getUser(username);
+        if (user == null) return null;
+        return user.getScheme();
     }
 
     /**
      * Verifies password against stored SCRYPT hash.
      */
     public boolean validatePassword(String username, String passwordAttempt) {
-        if (!userExists(username)) return false;
+        UserRecord user = getUser(username);
+        if (user == null) return false;
     
         try {
-            Map<String, Object> user = users.get(username);
-    
-            String saltStr = String.valueOf(user.get("salt"));
-            String passStr = String.valueOf(user.get("pass"));
-            
-            System.out.println("Raw stored password string: " + passStr);
-            System.out.println("Raw salt string: " + saltStr);
-            
-            byte[] salt = Base64.getDecoder().decode(saltStr);
-            byte[] storedHash = Base64.getDecoder().decode(passStr);
-            byte[] computed = EncryptionUtil.scryptHash(passwordAttempt, salt);
-            
-            System.out.println("Stored hash: " + Base64.getEncoder().encodeToString(storedHash));
-            System.out.println("Computed: " + Base64.getEncoder().encodeToString(computed));
-            System.out.println("Match: " + java.util.Arrays.equals(storedHash, computed));
-            
-            return java.util.Arrays.equals(storedHash, computed);
-            
+            long start = System.nanoTime();
+            byte[] computed = EncryptionUtil.scryptHash(passwordAttempt, user.getSalt());
+            SCRYPT_TIME.recordSince(start);
+            return user.passwordMatches(computed);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -152,24 +289,34 @@ public class UserDatabase {
     
 
     /**
-     * Validates a TOTP token using stored TOTP key.
+     * Validates a TOTP token using stored TOTP key. A code that was already
+     * accepted, or one from a step before the last accepted one, fails.
      */
     public boolean validateTOTP(String username, String otpCode) {
-        if (!userExists(username)) return false;
-    
+        UserRecord user = getUser(username);
+        if (user == null) return false;
+
+        long start = System.nanoTime();
         try {
-            String base64TotpKey = String.valueOf(users.get(username).get("totp-key"));
-            byte[] totpKey = Base64.getDecoder().decode(base64TotpKey);
-    
-            String expected = TotpVerifier.getCurrentCode(totpKey);
-            System.out.println("User OTP: " + otpCode);
-            System.out.println("Expected OTP (now): " + expected);
-    
-            return TotpVerifier.isValidCode(totpKey, otpCode);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return checkTOTP(user, otpCode);
+        } finally {
+            TOTP_TIME.recordSince(start);
+        }
+    }
+
+    private boolean checkTOTP(UserRecord user, String otpCode) {
+        int code = TotpVerifier.parseCode(otpCode);
+        if (code < 0) return false;
+
+        long step = TotpVerifier.matchStep(user.getTotpKey(), code, TotpVerifier.currentTimeStep());
+        if (step < 0) return false;
+
+        // a code is good once: not for a step already used, nor one older than the last accepted
+        if (!usedCodes.claim(user.getFingerprint(), step) || !user.advanceTotpStep(step)) {
+            TOTP_REPLAYS.increment();
             return false;
         }
+        return true;
     }
     
 
@@ -177,7 +324,8 @@ public class UserDatabase {
      * Returns the base64-encoded TOTP key for user creation response.
      */
     public String getTotpKey(String username) {
-        if (!userExists(username)) return null;
-        return (String) users.get(username).get("totp-key");
+        UserRecord user = getUser(username);
+        if (user == null) return null;
+        return Base64.getEncoder().encodeToString(user.getTotpKey());
     }
 }
@@ -0,0 +1,178 @@
+package server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * One account as held in memory. The password hash, salt, TOTP key and
+ * public key are kept as raw bytes, so authenticating never decodes Base64,
+ * and the username is interned. users.json and its log keep the Base64
+ * form; conversion happens only when accounts are loaded or saved.
+ *
+ * The record also keeps the last time step a TOTP code was accepted for,
+ * in memory only, so a code never works twice.
+ */
+public final class UserRecord {
+    private static final AtomicLongFieldUpdater<UserRecord> LAST_TOTP_STEP =
+        AtomicLongFieldUpdater.newUpdater(UserRecord.class, "lastTotpStep");
+
+    private final String user;
+    private final byte[] pass;
+    private final byte[] salt;
+    private final byte[] totpKey;
+    private final byte[] pubkey;
+    private final String scheme;
+    private final long fingerprint;
+    private volatile long lastTotpStep = -1;
+    private volatile String keyVersion;
+
+    UserRecord(String user, byte[] pass, byte[] salt, byte[] totpKey, byte[] pubkey, String scheme) {
+        this.user = user.intern();
+        this.pass = pass;
+        this.salt = salt;
+        this.totpKey = totpKey;
+        this.pubkey = pubkey;
+        this.scheme = scheme == null ? null : scheme.intern();
+        this.fingerprint = UsedCodeCache.fingerprint(this.user);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    byte[] getSalt() {
+        return salt;
+    }
+
+    byte[] getTotpKey() {
+        return totpKey;
+    }
+
+    byte[] getPubkey() {
+        return pubkey;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * The public key's version: the first 16 bytes of its SHA-256, in Base64.
+     * Computed on first use.
+     */
+    String getKeyVersion() {
+        String version = keyVersion;
+        if (version == null) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(pubkey);
+                version = Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            keyVersion = version;
+        }
+        return version;
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Moves the last accepted TOTP step forward to step.
+     *
+     * @return false if a code for this step or a later one was already accepted
+     */
+    boolean advanceTotpStep(long step) {
+        while (true) {
+            long last = lastTotpStep;
+            if (step <= last) return false;
+            if (LAST_TOTP_STEP.compareAndSet(this, last, step)) return true;
+        }
+    }
+
+    /**
+     * Compares a freshly computed hash with the stored one in constant time.
+     */
+    boolean passwordMatches(byte[] computed) {
+        if (computed.length != pass.length) return false;
+        int diff = 0;
+        for (int i = 0; i < pass.length; i++) {
+            diff |= pass[i] ^ computed[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Builds a record from the Base64 map stored in users.json and its log.
+     */
+    static UserRecord fromJson(Map<String, Object> userObj) throws InvalidObjectException {
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            return new UserRecord(
+                (String) userObj.get("user"),
+                decoder.decode((String) userObj.get("pass")),
+                decoder.decode((String) userObj.get("salt")),
+                decoder.decode((String) userObj.get("totp-key")),
+                decoder.decode((String) userObj.get("pubkey")),
+                (String) userObj.get("scheme"));
+        } catch (IllegalArgumentException | NullPointerException | ClassCastException e) {
+            throw new InvalidObjectException("bad user record for " + userObj.get("user"));
+        }
+    }
+
+    /**
+     * The Base64 map form written to users.json and its log.
+     */
+    Map<String, Object> toJson() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        Map<String, Object> userObj = new LinkedHashMap<>();
+        userObj.put("user", user);
+        userObj.put("pass", encoder.encodeToString(pass));
+        userObj.put("salt", encoder.encodeToString(salt));
+        userObj.put("totp-key", encoder.encodeToString(totpKey));
+        userObj.put("pubkey", encoder.encodeToString(pubkey));
+        if (scheme != null) {
+            userObj.put("scheme", scheme);
+        }
+        return userObj;
+    }
+
+    /**
+     * Writes the record for the binary snapshot.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        BinarySnapshot.writeString(out, user);
+        writeBytes(out, pass);
+        writeBytes(out, salt);
+        writeBytes(out, totpKey);
+        writeBytes(out, pubkey);
+        BinarySnapshot.writeString(out, scheme);
+    }
+
+    static UserRecord readFrom(DataInput in) throws IOException {
+        return new UserRecord(BinarySnapshot.readString(in),
+            readBytes(in), readBytes(in), readBytes(in), readBytes(in),
+            BinarySnapshot.readString(in));
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,234 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Binary encoding of the protocol's JSON messages.
+ *
+ * A frame is a type byte, a 4-byte big-endian payload length and the
+ * payload. The type byte stands for the message's "type" field; the payload
+ * holds the remaining fields as tagged values. The message, wrappedkey and iv
+ * fields travel as raw bytes instead of Base64 text, which saves about a
+ * third of their size on the wire.
+ *
+ * Decoding rebuilds the JSONObject that JsonIO would have produced for the
+ * JSON form (numbers come back as doubles, byte fields as Base64 strings),
+ * so the message classes in common deserialize either form the same way.
+ * That means the binary form saves bytes on the wire, not CPU: the sender
+ * still decodes each byte field's Base64 and the receiver encodes it again.
+ */
+public class BinaryCodec {
+
+    // first byte of the client hello; cannot start a JSON line
+    public static final int MAGIC = 0xB7;
+
+    // highest binary protocol version this build speaks
+    public static final int VERSION = 1;
+
+    // refuse frames larger than this so a bad length cannot exhaust the heap
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    // frame type bytes, indexed by position; 0 means the type travels as a field
+    private static final String[] TYPES = {
+        null, "Create", "Authenticate", "PubKeyRequest", "Post", "GetMessage",
+        "Status", "GetResponseMessage"
+    };
+
+    // fields sent as raw bytes when they hold Base64
+    private static final Set<String> BYTE_FIELDS = Set.of("message", "wrappedkey", "iv");
+
+    // value tags
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BYTES = 2;
+    private static final byte TAG_NUMBER = 3;
+    private static final byte TAG_TRUE = 4;
+    private static final byte TAG_FALSE = 5;
+    private static final byte TAG_ARRAY = 6;
+    private static final byte TAG_OBJECT = 7;
+
+    /**
+     * The type byte for a message, or 0 if its type has no short code.
+     */
+    public static byte typeCode(JSONObject message) {
+        Object type = message.get("type");
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) return (byte) i;
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes a message's fields (all but a type covered by the type byte).
+     */
+    public static byte[] encode(JSONObject message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encode(message, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a message's fields straight into a stream.
+     */
+    public static void encode(JSONObject message, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        writeObject(out, message, typeCode(message) != 0);
+        out.flush();
+    }
+
+    /**
+     * Decodes a frame payload back into the JSONObject the JSON form would give.
+     */
+    public static JSONObject decode(byte typeCode, ByteBuffer payload) throws InvalidObjectException {
+        try {
+            JSONObject obj = readObject(payload);
+            int code = typeCode & 0xff;
+            if (code != 0) {
+                if (code >= TYPES.length) {
+                    throw new InvalidObjectException("unknown frame type " + code);
+                }
+                obj.put("type", TYPES[code]);
+            }
+            if (payload.hasRemaining()) {
+                throw new InvalidObjectException("trailing bytes in frame");
+            }
+            return obj;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("truncated frame");
+        }
+    }
+
+    private static void writeObject(DataOutputStream out, Map<String, Object> obj, boolean skipType) throws IOException {
+        int count = obj.size() - (skipType && obj.containsKey("type") ? 1 : 0);
+        out.writeShort(count);
+
+        for (Map.Entry<String, Object> entry : obj.entrySet()) {
+            if (skipType && entry.getKey().equals("type")) continue;
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, String field, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            byte[] raw = BYTE_FIELDS.contains(field) ? decodeBase64((String) value) : null;
+            if (raw != null) {
+                out.writeByte(TAG_BYTES);
+                out.writeInt(raw.length);
+                out.write(raw);
+            } else {
+                out.writeByte(TAG_STRING);
+                writeString(out, (String) value);
+            }
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_NUMBER);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Map) {
+            out.writeByte(TAG_OBJECT);
+            writeObject(out, (Map<String, Object>) value, false);
+        } else if (value instanceof Iterable) {
+            out.writeByte(TAG_ARRAY);
+            int size = 0;
+            for (Object ignored : (Iterable<?>) value) size++;
+            out.writeInt(size);
+            for (Object item : (Iterable<?>) value) {
+                writeValue(out, field, item);
+            }
+        } else {
+            throw new InvalidObjectException("cannot encode " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static JSONObject readObject(ByteBuffer in) throws InvalidObjectException {
+        JSONObject obj = new JSONObject();
+        int count = in.getShort() & 0xffff;
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            obj.put(key, readValue(in));
+        }
+        return obj;
+    }
+
+    private static Object readValue(ByteBuffer in) throws InvalidObjectException {
+        byte tag = in.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_BYTES:
+                byte[] raw = new byte[checkedLength(in)];
+                in.get(raw);
+                return Base64.getEncoder().encodeToString(raw);
+            case TAG_NUMBER:
+                return in.getDouble();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_OBJECT:
+                return readObject(in);
+            case TAG_ARRAY:
+                int size = checkedLength(in);
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(readValue(in));
+                }
+                return array;
+            default:
+                throw new InvalidObjectException("unknown value tag " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) throws InvalidObjectException {
+        byte[] utf8 = new byte[checkedLength(in)];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static int checkedLength(ByteBuffer in) throws InvalidObjectException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new InvalidObjectException("bad length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the decoded bytes of a Base64 field, or null if it is not
+     * Base64 so the field is sent as text and comes back unchanged. The bytes
+     * are not encoded again to check them; a field with unusual but legal
+     * Base64 (e.g. no padding) comes back in standard form with the same bytes.
+     */
+    private static byte[] decodeBase64(String s) {
+        try {
+            return Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
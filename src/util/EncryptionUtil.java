@@ -2,23 +2,66 @@ package util;
 
 import java.security.SecureRandom;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
 import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class EncryptionUtil {
     private static final SecureRandom secureRandom = new SecureRandom();
 
     private static final int AES_KEY_SIZE = 256; // AES key size in bits
 
+    // how many decoded keys of each kind to keep, keyed by their Base64 text
+    private static final int KEY_CACHE_SIZE = 256;
+
+    private static final Map<String, PublicKey> publicKeyCache = lruCache(KEY_CACHE_SIZE);
+    private static final Map<String, PrivateKey> privateKeyCache = lruCache(KEY_CACHE_SIZE);
+
+    /**
+     * Provider lookups are slow and these objects are not thread-safe,
+     * so each thread keeps its own instances and re-inits them per call.
+     */
+    private static final ThreadLocal<KeyFactory> elgamalKeyFactory =
+        threadLocal(() -> KeyFactory.getInstance("ElGamal", "BC"));
+    private static final ThreadLocal<Cipher> elgamalCipher =
+        threadLocal(() -> Cipher.getInstance("ElGamal/None/PKCS1Padding", "BC"));
+    private static final ThreadLocal<Cipher> aesGcmCipher =
+        threadLocal(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+    private static final ThreadLocal<KeyGenerator> aesKeyGenerator = threadLocal(() -> {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128, secureRandom);
+        return keyGen;
+    });
+
+    // X25519 key wrap scheme
+    private static final byte[] X25519_WRAP_INFO = "bulletin-board x25519 key wrap".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<KeyFactory> x25519KeyFactory =
+        threadLocal(() -> KeyFactory.getInstance("X25519"));
+    private static final ThreadLocal<KeyPairGenerator> x25519KeyPairGenerator =
+        threadLocal(() -> KeyPairGenerator.getInstance("X25519"));
+    private static final ThreadLocal<KeyAgreement> x25519Agreement =
+        threadLocal(() -> KeyAgreement.getInstance("X25519"));
+    private static final ThreadLocal<Cipher> aesWrapCipher =
+        threadLocal(() -> Cipher.getInstance("AESWrap"));
+
     public static String[] generateElGamelKeyPair() throws Exception {
         return CryptoUtils.generateElGamalKeyPair();
     }
@@ -35,9 +78,8 @@ public class EncryptionUtil {
     private static final int KEY_LENGTH = 16; // 128 bits
 
     public static byte[] generateRandomBytes(int length) throws Exception {
-        SecureRandom random = new SecureRandom();
         byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
+        secureRandom.nextBytes(bytes);
         return bytes;
     }
 
@@ -46,9 +88,21 @@ public class EncryptionUtil {
     }
 
     public static String[] generateKeyPair() throws Exception {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ElGamal", "BC");
-        keyGen.initialize(2048);
-        KeyPair pair = keyGen.generateKeyPair();
+        return generateKeyPair(KeyWrapScheme.ELGAMAL);
+    }
+
+    /**
+     * Generates a Base64 {public, private} key pair for the given scheme.
+     */
+    public static String[] generateKeyPair(KeyWrapScheme scheme) throws Exception {
+        KeyPair pair;
+        if (scheme == KeyWrapScheme.X25519) {
+            pair = x25519KeyPairGenerator.get().generateKeyPair();
+        } else {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ElGamal", "BC");
+            keyGen.initialize(2048);
+            pair = keyGen.generateKeyPair();
+        }
         PublicKey pub = pair.getPublic();
         PrivateKey priv = pair.getPrivate();
         return new String[]{
@@ -57,26 +111,37 @@ public class EncryptionUtil {
         };
     }
 
+    /**
+     * Encrypts a message for the owner of the public key. The key wrap scheme
+     * is taken from the key's encoding.
+     */
     public static String[] encryptMessage(String message, String base64PublicKey) throws Exception {
+        return encryptMessage(message, decodePublicKey(base64PublicKey), KeyWrapScheme.ofPublicKey(base64PublicKey));
+    }
+
+    /**
+     * Encrypts a message for an already parsed public key, e.g. one held in
+     * a client's key cache.
+     */
+    public static String[] encryptMessage(String message, PublicKey pubKey, KeyWrapScheme scheme) throws Exception {
         // Generate AES key
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(128);
-        SecretKey aesKey = keyGen.generateKey();
+        SecretKey aesKey = aesKeyGenerator.get().generateKey();
 
         // Encrypt message with AES-GCM
         byte[] iv = generateRandomBytes(12);
-        Cipher aesCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher aesCipher = aesGcmCipher.get();
         aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(128, iv));
         byte[] ciphertext = aesCipher.doFinal(message.getBytes());
 
-        // Encrypt AES key using recipient's public key (ElGamal)
-        byte[] decodedPub = Base64.getDecoder().decode(base64PublicKey);
-        KeyFactory keyFactory = KeyFactory.getInstance("ElGamal", "BC");
-        PublicKey pubKey = keyFactory.generatePublic(new X509EncodedKeySpec(decodedPub));
-
-        Cipher elgamal = Cipher.getInstance("ElGamal/None/PKCS1Padding", "BC");
-        elgamal.init(Cipher.ENCRYPT_MODE, pubKey);
-        byte[] wrappedKey = elgamal.doFinal(aesKey.getEncoded());
+        // Wrap AES key for the recipient (ElGamal or X25519 depending on their key)
+        byte[] wrappedKey;
+        if (scheme == KeyWrapScheme.X25519) {
+            wrappedKey = wrapX25519(aesKey, pubKey);
+        } else {
+            Cipher elgamal = elgamalCipher.get();
+            elgamal.init(Cipher.ENCRYPT_MODE, pubKey);
+            wrappedKey = elgamal.doFinal(aesKey.getEncoded());
+        }
 
         return new String[]{
             Base64.getEncoder().encodeToString(ciphertext),
@@ -86,27 +151,165 @@ public class EncryptionUtil {
     }
 
     public static String decryptMessage(String ciphertextB64, String wrappedKeyB64, String ivB64, String base64PrivateKey) throws Exception {
+        return decryptMessage(ciphertextB64, wrappedKeyB64, ivB64, base64PrivateKey, KeyWrapScheme.ELGAMAL);
+    }
+
+    /**
+     * Decrypts a post whose AES key was wrapped with the given scheme.
+     */
+    public static String decryptMessage(String ciphertextB64, String wrappedKeyB64, String ivB64,
+                                        String base64PrivateKey, KeyWrapScheme scheme) throws Exception {
         // Decode everything
         byte[] ciphertext = Base64.getDecoder().decode(ciphertextB64);
         byte[] wrappedKey = Base64.getDecoder().decode(wrappedKeyB64);
         byte[] iv = Base64.getDecoder().decode(ivB64);
-        byte[] decodedPriv = Base64.getDecoder().decode(base64PrivateKey);
-
-        // Decrypt AES key with ElGamal private key
-        KeyFactory keyFactory = KeyFactory.getInstance("ElGamal", "BC");
-        PrivateKey privKey = keyFactory.generatePrivate(new java.security.spec.PKCS8EncodedKeySpec(decodedPriv));
-
-        Cipher elgamal = Cipher.getInstance("ElGamal/None/PKCS1Padding", "BC");
-        elgamal.init(Cipher.DECRYPT_MODE, privKey);
-        byte[] aesKeyBytes = elgamal.doFinal(wrappedKey);
 
-        SecretKeySpec aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+        // Unwrap AES key with the private key
+        PrivateKey privKey = decodePrivateKey(base64PrivateKey, scheme);
+        SecretKey aesKey;
+        if (scheme == KeyWrapScheme.X25519) {
+            aesKey = unwrapX25519(wrappedKey, privKey);
+        } else {
+            Cipher elgamal = elgamalCipher.get();
+            elgamal.init(Cipher.DECRYPT_MODE, privKey);
+            byte[] aesKeyBytes = elgamal.doFinal(wrappedKey);
+            aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+        }
 
         // Decrypt AES-GCM message
-        Cipher aesCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher aesCipher = aesGcmCipher.get();
         aesCipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(128, iv));
         byte[] plaintext = aesCipher.doFinal(ciphertext);
 
         return new String(plaintext);
     }
-}
\ No newline at end of file
+
+    /**
+     * ECIES-style wrap: an ephemeral X25519 agreement with the recipient's key,
+     * HKDF-SHA256 to derive a key-encryption key, then AES key wrap.
+     * Output is the 32-byte ephemeral public key followed by the wrapped key.
+     */
+    private static byte[] wrapX25519(SecretKey aesKey, PublicKey recipient) throws GeneralSecurityException {
+        KeyPair ephemeral = x25519KeyPairGenerator.get().generateKeyPair();
+        byte[] ephemeralRaw = rawX25519(ephemeral.getPublic());
+
+        KeyAgreement agreement = x25519Agreement.get();
+        agreement.init(ephemeral.getPrivate());
+        agreement.doPhase(recipient, true);
+        SecretKey kek = deriveWrapKey(agreement.generateSecret(), ephemeralRaw);
+
+        Cipher wrap = aesWrapCipher.get();
+        wrap.init(Cipher.WRAP_MODE, kek);
+        byte[] wrapped = wrap.wrap(aesKey);
+
+        byte[] out = new byte[ephemeralRaw.length + wrapped.length];
+        System.arraycopy(ephemeralRaw, 0, out, 0, ephemeralRaw.length);
+        System.arraycopy(wrapped, 0, out, ephemeralRaw.length, wrapped.length);
+        return out;
+    }
+
+    private static SecretKey unwrapX25519(byte[] wrappedKey, PrivateKey privKey) throws GeneralSecurityException {
+        if (wrappedKey.length <= 32) {
+            throw new GeneralSecurityException("wrapped key too short for x25519");
+        }
+        byte[] ephemeralRaw = Arrays.copyOfRange(wrappedKey, 0, 32);
+        byte[] encoded = new byte[KeyWrapScheme.X25519_X509_PREFIX.length + 32];
+        System.arraycopy(KeyWrapScheme.X25519_X509_PREFIX, 0, encoded, 0, KeyWrapScheme.X25519_X509_PREFIX.length);
+        System.arraycopy(ephemeralRaw, 0, encoded, KeyWrapScheme.X25519_X509_PREFIX.length, 32);
+        PublicKey ephemeral = x25519KeyFactory.get().generatePublic(new X509EncodedKeySpec(encoded));
+
+        KeyAgreement agreement = x25519Agreement.get();
+        agreement.init(privKey);
+        agreement.doPhase(ephemeral, true);
+        SecretKey kek = deriveWrapKey(agreement.generateSecret(), ephemeralRaw);
+
+        Cipher unwrap = aesWrapCipher.get();
+        unwrap.init(Cipher.UNWRAP_MODE, kek);
+        return (SecretKey) unwrap.unwrap(Arrays.copyOfRange(wrappedKey, 32, wrappedKey.length), "AES", Cipher.SECRET_KEY);
+    }
+
+    /**
+     * HKDF-SHA256 over the shared secret, salted with the ephemeral public key.
+     */
+    private static SecretKey deriveWrapKey(byte[] sharedSecret, byte[] ephemeralRaw) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(sharedSecret, ephemeralRaw, X25519_WRAP_INFO));
+        byte[] kek = new byte[16];
+        hkdf.generateBytes(kek, 0, kek.length);
+        return new SecretKeySpec(kek, "AES");
+    }
+
+    /**
+     * The raw 32-byte u-coordinate of an X25519 public key.
+     */
+    private static byte[] rawX25519(PublicKey key) {
+        byte[] encoded = key.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length);
+    }
+
+    /**
+     * Parses an X.509 public key (ElGamal or X25519, detected from the
+     * encoding), reusing the decoded key when the same Base64 text was
+     * seen recently.
+     */
+    public static PublicKey decodePublicKey(String base64PublicKey) throws GeneralSecurityException {
+        PublicKey key = publicKeyCache.get(base64PublicKey);
+        if (key == null) {
+            byte[] decoded = Base64.getDecoder().decode(base64PublicKey);
+            KeyFactory factory = KeyWrapScheme.ofPublicKey(base64PublicKey) == KeyWrapScheme.X25519
+                ? x25519KeyFactory.get()
+                : elgamalKeyFactory.get();
+            key = factory.generatePublic(new X509EncodedKeySpec(decoded));
+            publicKeyCache.put(base64PublicKey, key);
+        }
+        return key;
+    }
+
+    public static PrivateKey decodePrivateKey(String base64PrivateKey) throws GeneralSecurityException {
+        return decodePrivateKey(base64PrivateKey, KeyWrapScheme.ELGAMAL);
+    }
+
+    /**
+     * Parses a PKCS#8 private key for the given scheme, reusing the decoded
+     * key when the same Base64 text was seen recently.
+     */
+    public static PrivateKey decodePrivateKey(String base64PrivateKey, KeyWrapScheme scheme) throws GeneralSecurityException {
+        PrivateKey key = privateKeyCache.get(base64PrivateKey);
+        if (key == null) {
+            byte[] decoded = Base64.getDecoder().decode(base64PrivateKey);
+            KeyFactory factory = scheme == KeyWrapScheme.X25519 ? x25519KeyFactory.get() : elgamalKeyFactory.get();
+            key = factory.generatePrivate(new PKCS8EncodedKeySpec(decoded));
+            privateKeyCache.put(base64PrivateKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * A small thread-safe map that evicts the least recently used entry.
+     */
+    private static <V> Map<String, V> lruCache(int maxEntries) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Factory for JCA objects whose getInstance can throw a checked exception.
+     */
+    private interface JcaFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> ThreadLocal<T> threadLocal(JcaFactory<T> factory) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return factory.create();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("crypto provider unavailable", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+package util;
+
+import java.util.Base64;
+
+/**
+ * How the per-message AES key is wrapped for the recipient.
+ *
+ * ELGAMAL is the original 2048-bit ElGamal scheme and stays the default, so
+ * users and posts without a scheme id keep working. X25519 is an ECIES-style
+ * scheme: an ephemeral X25519 key agreement feeds HKDF-SHA256, and the result
+ * wraps the AES key with AES key wrap. Its keys are 32 bytes and its wrapped
+ * keys 56 bytes, against a 512-byte ElGamal ciphertext.
+ */
+public enum KeyWrapScheme {
+    ELGAMAL("elgamal"),
+    X25519("x25519");
+
+    // DER prefix of an X.509 SubjectPublicKeyInfo for an X25519 key (OID 1.3.101.110)
+    static final byte[] X25519_X509_PREFIX = {
+        0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+
+    private final String id;
+
+    KeyWrapScheme(String id) {
+        this.id = id;
+    }
+
+    /**
+     * The id sent on the wire and stored with users and posts.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Looks up a scheme by id; a missing id means the original ElGamal scheme.
+     */
+    public static KeyWrapScheme fromId(String id) {
+        if (id == null) return ELGAMAL;
+        for (KeyWrapScheme scheme : values()) {
+            if (scheme.id.equals(id)) return scheme;
+        }
+        throw new IllegalArgumentException("unknown key wrap scheme: " + id);
+    }
+
+    /**
+     * Works out the scheme of a Base64 X.509 public key from its encoding,
+     * so senders know how to wrap for a recipient from the key alone.
+     */
+    public static KeyWrapScheme ofPublicKey(String base64PublicKey) {
+        byte[] encoded = Base64.getDecoder().decode(base64PublicKey);
+        if (encoded.length != X25519_X509_PREFIX.length + 32) return ELGAMAL;
+        for (int i = 0; i < X25519_X509_PREFIX.length; i++) {
+            if (encoded[i] != X25519_X509_PREFIX[i]) return ELGAMAL;
+        }
+        return X25519;
+    }
+}
@@ -1,42 +1,144 @@
 package util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InvalidObjectException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import common.PostObject;
+import common.ResponseMessage;
 
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 
 
 /**
  * SocketWrapper is a utility class that wraps a Socket object to provide
  * convenient methods for sending and receiving JSON messages.
+ *
+ * A connection speaks one-line JSON by default. A client that sends the
+ * binary hello before its first message switches both sides to the framed
+ * encoding in BinaryCodec; the same JSONObjects go in and come out either way.
  * 
  * Add encryption on top afterwards
  */
 public class SocketWrapper {
 
     private final Socket socket;
+    private final BufferedInputStream in;
+    private final BufferedOutputStream out;
     private final BufferedReader reader;
     private final PrintWriter writer;
 
+    // set once the binary hello has been exchanged
+    private boolean binary;
+    private int version;
+
     /**
      * Wrap a connected Socket or SSLSocket.
      */
     public SocketWrapper(Socket socket) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.reader = new BufferedReader(new InputStreamReader(in));
+        this.writer = new PrintWriter(new OutputStreamWriter(out), true);
+    }
+
+    /**
+     * Client side: asks the server for the binary protocol. The hello is the
+     * magic byte, our version and a newline, so a server that only knows JSON
+     * fails it as one bad line and drops the connection. Returns false in
+     * that case; the caller should reconnect and stay on JSON.
+     */
+    public boolean requestBinary() throws IOException {
+        out.write(BinaryCodec.MAGIC);
+        out.write(BinaryCodec.VERSION);
+        out.write('\n');
+        out.flush();
+
+        int magic = in.read();
+        int accepted = in.read();
+        if (magic != BinaryCodec.MAGIC || accepted < 1) {
+            return false;
+        }
+        binary = true;
+        version = accepted;
+        return true;
+    }
+
+    /**
+     * Server side: checks whether the client opened with the binary hello
+     * and, if so, answers it with the version both sides will use. A client
+     * that starts straight away with JSON is left untouched.
+     */
+    public boolean acceptHandshake() throws IOException {
+        in.mark(1);
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException("Connection closed by remote host");
+        }
+        if (first != BinaryCodec.MAGIC) {
+            in.reset();
+            return false;
+        }
+
+        int offered = in.read();
+        if (offered < 1 || in.read() != '\n') {
+            throw new InvalidObjectException("bad binary protocol hello");
+        }
+        version = Math.min(offered, BinaryCodec.VERSION);
+        out.write(BinaryCodec.MAGIC);
+        out.write(version);
+        out.flush();
+        binary = true;
+        return true;
+    }
+
+    /**
+     * Whether this connection uses binary frames.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * The negotiated binary protocol version, or 0 for JSON.
+     */
+    public int getProtocolVersion() {
+        return version;
     }
 
     /**
      * Sends a JSONSerializable object as a one-line JSON string.
+     * A ResponseMessage is streamed post by post instead of being built as one string.
      */
-    public void sendMessage(JSONSerializable message) {
+    public void sendMessage(JSONSerializable message) throws IOException {
+        if (binary) {
+            writeFrame((JSONObject) message.toJSONType());
+            return;
+        }
+
+        if (message instanceof ResponseMessage) {
+            ((ResponseMessage) message).writeTo(writer);
+            writer.println();
+            writer.flush();
+            return;
+        }
+
         String serialized = message.serialize().replace("\n", "").replace("\r", "").trim();
         writer.println(serialized);
         writer.flush();
@@ -44,15 +146,141 @@ public class SocketWrapper {
 
     /**
      * Receives a JSON object from the socket stream.
+     * Throws EOFException once the remote side has closed the connection,
+     * so long-lived sessions can tell a clean close from a real error.
      */
     public JSONObject receiveMessage() throws IOException {
+        if (binary) {
+            return readFrame();
+        }
+
         String jsonString = reader.readLine();
         if (jsonString == null) {
-            throw new IOException("Connection closed by remote host");
+            throw new EOFException("Connection closed by remote host");
         }
         return JsonIO.readObject(jsonString);
     }
 
+    /**
+     * Receives one message, streaming any posts it carries to onPost as they
+     * are parsed instead of collecting them. Returns the remaining top-level
+     * fields, e.g. the type plus next/more for a GetResponseMessage or the
+     * status and payload for a StatusMessage.
+     */
+    public JSONObject receiveMessage(Consumer<PostObject> onPost) throws IOException {
+        if (binary) {
+            // a frame arrives whole, so hand the posts over from the decoded array
+            JSONObject head = readFrame();
+            Object posts = head.remove("posts");
+            if (posts instanceof JSONArray) {
+                for (Object item : (JSONArray) posts) {
+                    PostObject post = new PostObject();
+                    post.deserialize((JSONObject) item);
+                    onPost.accept(post);
+                }
+            }
+            return head;
+        }
+
+        LineReader line = new LineReader(reader);
+        if (!line.hasData()) {
+            throw new EOFException("Connection closed by remote host");
+        }
+        JSONObject head = ResponseMessage.readStreaming(line, onPost);
+        line.skipRest();
+        return head;
+    }
+
+    /**
+     * Writes one binary frame: type byte, payload length, payload.
+     */
+    private void writeFrame(JSONObject message) throws IOException {
+        byte[] payload = BinaryCodec.encode(message);
+        DataOutputStream frame = new DataOutputStream(out);
+        frame.writeByte(BinaryCodec.typeCode(message));
+        frame.writeInt(payload.length);
+        frame.write(payload);
+        frame.flush();
+    }
+
+    /**
+     * Reads one binary frame and decodes it.
+     */
+    private JSONObject readFrame() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException("Connection closed by remote host");
+        }
+
+        DataInputStream frame = new DataInputStream(in);
+        int length = frame.readInt();
+        if (length < 0 || length > BinaryCodec.MAX_FRAME) {
+            throw new InvalidObjectException("bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        frame.readFully(payload);
+        return BinaryCodec.decode((byte) type, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Reader over the current line of a BufferedReader. It reads in bulk but
+     * never consumes past the line's newline, so the next message is left
+     * in place for the following receive.
+     */
+    private static class LineReader extends Reader {
+        private final BufferedReader in;
+        private boolean done;
+
+        LineReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        boolean hasData() throws IOException {
+            in.mark(1);
+            int c = in.read();
+            if (c < 0) return false;
+            in.reset();
+            return true;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (done || len == 0) return done ? -1 : 0;
+
+            in.mark(len);
+            int n = in.read(cbuf, off, len);
+            if (n < 0) {
+                done = true;
+                return -1;
+            }
+            for (int i = 0; i < n; i++) {
+                if (cbuf[off + i] == '\n') {
+                    // give back everything after the newline
+                    in.reset();
+                    in.skip(i + 1);
+                    done = true;
+                    return i == 0 ? -1 : i;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Consumes whatever is left of the line after the parser stopped.
+         */
+        void skipRest() throws IOException {
+            char[] scratch = new char[64];
+            while (read(scratch, 0, scratch.length) >= 0) {
+                // discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // the underlying reader belongs to the socket
+        }
+    }
+
     /**
      * Close all resources.
      */
@@ -3,12 +3,10 @@ package util;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import org.bouncycastle.crypto.digests.SHA1Digest;
-import org.bouncycastle.crypto.macs.HMac;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import java.nio.ByteBuffer;
 import java.security.Security;
+import java.util.Arrays;
 
 
 public class TotpVerifier {
@@ -25,6 +23,16 @@ public class TotpVerifier {
     // Allow codes within this many time steps (before/after) to account for clock skew
     private static final int TIME_SKEW = 1;
     
+    // 10^DIGITS, the modulus for the truncated HMAC
+    private static final int MODULUS = 1_000_000;
+
+    // HMAC-SHA1 block and output sizes (RFC 2104)
+    private static final int BLOCK_SIZE = 64;
+    private static final int MAC_SIZE = 20;
+
+    // one HMAC engine per thread; checking a code allocates nothing
+    private static final ThreadLocal<Engine> ENGINE = ThreadLocal.withInitial(Engine::new);
+
     /**
      * Verifies if the provided OTP code is valid for the given secret key
      * 
@@ -33,71 +41,165 @@ public class TotpVerifier {
      * @return true if the code is valid, false otherwise
      */
     public static boolean isValidCode(byte[] key, String userOtp) {
-        // Remove any spaces from the OTP
-        userOtp = userOtp.replaceAll("\\s+", "");
-        
-        // Validate that the OTP has the correct number of digits
-        if (userOtp.length() != DIGITS || !userOtp.matches("\\d+")) {
-            return false;
+        int code = parseCode(userOtp);
+        return code >= 0 && isValidCode(key, code);
+    }
+
+    /**
+     * Verifies an OTP already parsed with parseCode. Compares integers
+     * across the skew window and produces no garbage.
+     *
+     * @param key The secret TOTP key (raw bytes)
+     * @param code The code as returned by parseCode
+     * @return true if the code is valid, false otherwise
+     */
+    public static boolean isValidCode(byte[] key, int code) {
+        return matchStep(key, code, currentTimeStep()) >= 0;
+    }
+
+    /**
+     * Finds the time step within the skew window of now whose code equals
+     * the given one.
+     *
+     * @param key The secret TOTP key (raw bytes)
+     * @param code The code as returned by parseCode
+     * @param now The current time step
+     * @return The matching time step, or -1 if none matches
+     */
+    public static long matchStep(byte[] key, int code, long now) {
+        if (code < 0 || code >= MODULUS) {
+            return -1;
         }
-        
-        try {
-            // Get the current timestamp
-            long currentTimeMillis = System.currentTimeMillis();
-            long currentTimeStep = currentTimeMillis / 1000 / TIME_STEP;
-            
-            // Check the OTP against the current time step and the allowed time skew
-            for (int i = -TIME_SKEW; i <= TIME_SKEW; i++) {
-                String generatedOtp = generateTOTP(key, currentTimeStep + i, DIGITS);
-                if (generatedOtp.equals(userOtp)) {
-                    return true;
-                }
+
+        Engine engine = ENGINE.get();
+        engine.setKey(key);
+        for (int i = -TIME_SKEW; i <= TIME_SKEW; i++) {
+            if (engine.code(now + i) == code) {
+                return now + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a user supplied OTP, ignoring whitespace, without regexes or
+     * allocation.
+     *
+     * @param userOtp The code provided by the user
+     * @return The code as an int, or -1 if it is not exactly DIGITS digits
+     */
+    public static int parseCode(String userOtp) {
+        if (userOtp == null) {
+            return -1;
+        }
+
+        int code = 0;
+        int digits = 0;
+        for (int i = 0; i < userOtp.length(); i++) {
+            char c = userOtp.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
             }
-            
-            return false;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            if (c < '0' || c > '9' || ++digits > DIGITS) {
+                return -1;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return digits == DIGITS ? code : -1;
+    }
+
+    /**
+     * The current RFC 6238 time step.
+     */
+    public static long currentTimeStep() {
+        return System.currentTimeMillis() / 1000 / TIME_STEP;
+    }
+
+    /**
+     * HMAC-SHA1 over reusable buffers. The inner and outer pad states are
+     * hashed once per key and restored with Memoable.reset, so computing a
+     * code only runs the digest (RFC 2104, RFC 4226 section 5).
+     */
+    private static final class Engine {
+        private final SHA1Digest digest = new SHA1Digest();
+        private final SHA1Digest innerState = new SHA1Digest();
+        private final SHA1Digest outerState = new SHA1Digest();
+        private final byte[] pad = new byte[BLOCK_SIZE];
+        private final byte[] counter = new byte[8];
+        private final byte[] mac = new byte[MAC_SIZE];
+        private byte[] lastKey = new byte[BLOCK_SIZE];
+        private int lastKeyLength = -1;
+
+        void setKey(byte[] key) {
+            if (key.length == lastKeyLength
+                    && Arrays.equals(key, 0, key.length, lastKey, 0, lastKeyLength)) {
+                return;
+            }
+            if (key.length > lastKey.length) {
+                lastKey = new byte[key.length];
+            }
+            System.arraycopy(key, 0, lastKey, 0, key.length);
+            lastKeyLength = key.length;
+
+            // keys longer than a block are hashed first
+            Arrays.fill(pad, (byte) 0);
+            if (key.length > BLOCK_SIZE) {
+                digest.reset();
+                digest.update(key, 0, key.length);
+                digest.doFinal(pad, 0);
+            } else {
+                System.arraycopy(key, 0, pad, 0, key.length);
+            }
+
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                pad[i] ^= 0x36;
+            }
+            innerState.reset();
+            innerState.update(pad, 0, BLOCK_SIZE);
+
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                pad[i] ^= 0x36 ^ 0x5c;
+            }
+            outerState.reset();
+            outerState.update(pad, 0, BLOCK_SIZE);
+        }
+
+        int code(long timeStep) {
+            // Convert time step to bytes (RFC 4226 section 5.2)
+            for (int i = 7; i >= 0; i--) {
+                counter[i] = (byte) timeStep;
+                timeStep >>>= 8;
+            }
+
+            digest.reset(innerState);
+            digest.update(counter, 0, counter.length);
+            digest.doFinal(mac, 0);
+            digest.reset(outerState);
+            digest.update(mac, 0, MAC_SIZE);
+            digest.doFinal(mac, 0);
+
+            // Dynamic truncation (RFC 4226 section 5.3 and 5.4)
+            int offset = mac[MAC_SIZE - 1] & 0xf;
+            int binary = ((mac[offset] & 0x7f) << 24) |
+                        ((mac[offset + 1] & 0xff) << 16) |
+                        ((mac[offset + 2] & 0xff) << 8) |
+                        (mac[offset + 3] & 0xff);
+            return binary % MODULUS;
         }
     }
     
     /**
-     * Generates a TOTP code for a specific time step using Bouncy Castle
+     * Generates a TOTP code for a specific time step
      * 
      * @param key The secret TOTP key (raw bytes)
      * @param timeStep The time step to generate the code for
-     * @param digits The number of digits in the OTP
-     * @return The generated OTP code
+     * @return The generated OTP code, zero padded to DIGITS digits
      */
-    private static String generateTOTP(byte[] key, long timeStep, int digits) {
-        // Convert time step to bytes (RFC 4226 section 5.2)
-        byte[] timeBytes = ByteBuffer.allocate(8).putLong(timeStep).array();
-        
-        // Generate the HMAC-SHA1 hash using Bouncy Castle
-        HMac hmac = new HMac(new SHA1Digest());
-        hmac.init(new KeyParameter(key));
-        
-        byte[] hmacResult = new byte[hmac.getMacSize()];
-        hmac.update(timeBytes, 0, timeBytes.length);
-        hmac.doFinal(hmacResult, 0);
-        
-        // Dynamic truncation (RFC 4226 section 5.3 and 5.4)
-        int offset = hmacResult[hmacResult.length - 1] & 0xf;
-        int binary = ((hmacResult[offset] & 0x7f) << 24) |
-                    ((hmacResult[offset + 1] & 0xff) << 16) |
-                    ((hmacResult[offset + 2] & 0xff) << 8) |
-                    (hmacResult[offset + 3] & 0xff);
-        
-        // Generate the code with the appropriate number of digits
-        int modulo = (int) Math.pow(10, digits);
-        String code = Integer.toString(binary % modulo);
-        
-        // Pad with leading zeros if necessary
-        while (code.length() < digits) {
-            code = "0" + code;
-        }
-        
-        return code;
+    private static String generateTOTP(byte[] key, long timeStep) {
+        Engine engine = ENGINE.get();
+        engine.setKey(key);
+        String code = Integer.toString(engine.code(timeStep));
+        return "0".repeat(DIGITS - code.length()) + code;
     }
     
     /**
@@ -108,9 +210,7 @@ public class TotpVerifier {
      * @return The current TOTP code
      */
     public static String getCurrentCode(byte[] key) {
-        long currentTimeMillis = System.currentTimeMillis();
-        long currentTimeStep = currentTimeMillis / 1000 / TIME_STEP;
-        return generateTOTP(key, currentTimeStep, DIGITS);
+        return generateTOTP(key, currentTimeStep());
     }
     
     /**
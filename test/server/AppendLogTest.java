@@ -0,0 +1,75 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+/**
+ * Recovery of the write-ahead log after a crash tore its last write.
+ */
+public class AppendLogTest {
+
+    private static final TypeReference<Map<String, Object>> RECORD = new TypeReference<Map<String, Object>>() {};
+
+    public static void main(String[] args) throws Exception {
+        replaySkipsTornLastLine();
+        replayRejectsCorruptRecordBeforeEnd();
+        reopenTrimsTornLastLine();
+        System.out.println("[+] AppendLogTest passed");
+    }
+
+    private static void replaySkipsTornLastLine() throws IOException {
+        File file = tempLog("{\"seq\":1}\n{\"seq\":2}\n{\"seq\":3,\"mess");
+
+        List<Map<String, Object>> records = new ArrayList<>();
+        int count = AppendLog.replay(file, RECORD, records::add);
+
+        check(count == 2, "replay counted " + count + " records, expected 2");
+        check(records.size() == 2, "replay delivered " + records.size() + " records, expected 2");
+        check(Integer.valueOf(2).equals(records.get(1).get("seq")), "last replayed record is " + records.get(1));
+    }
+
+    private static void replayRejectsCorruptRecordBeforeEnd() throws IOException {
+        File file = tempLog("{\"seq\":1}\n{\"seq\":2,\"mess\n{\"seq\":3}\n");
+
+        try {
+            AppendLog.replay(file, RECORD, record -> { });
+            throw new AssertionError("replay accepted a corrupt record in the middle of the log");
+        } catch (IOException expected) {
+            // only the last line may be torn
+        }
+    }
+
+    private static void reopenTrimsTornLastLine() throws IOException {
+        File file = tempLog("{\"seq\":1}\n{\"seq\":2,\"mess");
+
+        try (AppendLog<Map<String, Object>> log = new AppendLog<>(file, AppendLog.SyncPolicy.always())) {
+            log.append(Map.of("seq", 3));
+        }
+
+        List<Map<String, Object>> records = new ArrayList<>();
+        int count = AppendLog.replay(file, RECORD, records::add);
+
+        check(count == 2, "replay after reopen counted " + count + " records, expected 2");
+        check(Integer.valueOf(3).equals(records.get(1).get("seq")), "record appended after reopen is " + records.get(1));
+    }
+
+    private static File tempLog(String contents) throws IOException {
+        File file = File.createTempFile("appendlog", ".log");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
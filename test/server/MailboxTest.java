@@ -0,0 +1,83 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.PostObject;
+
+/**
+ * since/limit paging over a mailbox, bounded by the board's visible watermark.
+ */
+public class MailboxTest {
+
+    public static void main(String[] args) {
+        pagesStopAtWatermark();
+        pageResumesWhenWatermarkAdvances();
+        lateLowerSeqIsNotSkipped();
+        System.out.println("[+] MailboxTest passed");
+    }
+
+    private static void pagesStopAtWatermark() {
+        Mailbox mailbox = mailboxWith(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+
+        // posts 8..10 are still being written, so only 1..7 are visible
+        long watermark = 7;
+        checkSeqs(mailbox.range(0, watermark, 3), 1, 2, 3);
+        checkSeqs(mailbox.range(3, watermark, 3), 4, 5, 6);
+        checkSeqs(mailbox.range(6, watermark, 3), 7);
+        checkSeqs(mailbox.range(7, watermark, 3));
+
+        // no limit returns everything up to the watermark
+        checkSeqs(mailbox.range(4, watermark, 0), 5, 6, 7);
+    }
+
+    private static void pageResumesWhenWatermarkAdvances() {
+        Mailbox mailbox = mailboxWith(1, 2, 3, 4, 5);
+
+        checkSeqs(mailbox.range(0, 3, 2), 1, 2);
+        checkSeqs(mailbox.range(2, 3, 2), 3);
+
+        mailbox.add(post(6));
+        checkSeqs(mailbox.range(3, 6, 2), 4, 5);
+        checkSeqs(mailbox.range(5, 6, 2), 6);
+    }
+
+    private static void lateLowerSeqIsNotSkipped() {
+        // seq 3 was assigned before seq 4 but lands in the mailbox after it
+        Mailbox mailbox = mailboxWith(1, 2, 4);
+
+        // the watermark stays below 3 until post 3 is stored
+        checkSeqs(mailbox.range(0, 2, 10), 1, 2);
+
+        mailbox.add(post(3));
+        checkSeqs(mailbox.range(2, 4, 10), 3, 4);
+    }
+
+    private static Mailbox mailboxWith(long... seqs) {
+        Mailbox mailbox = new Mailbox();
+        for (long seq : seqs) {
+            mailbox.add(post(seq));
+        }
+        return mailbox;
+    }
+
+    private static PostObject post(long seq) {
+        PostObject post = new PostObject("alice", "bWVzc2FnZQ==", "a2V5", "aXY=");
+        post.setSeq(seq);
+        return post;
+    }
+
+    private static void checkSeqs(List<PostObject> page, long... expected) {
+        List<Long> seqs = new ArrayList<>();
+        for (PostObject post : page) {
+            seqs.add(post.getSeq());
+        }
+        List<Long> want = new ArrayList<>();
+        for (long seq : expected) {
+            want.add(seq);
+        }
+        if (!seqs.equals(want)) {
+            throw new AssertionError("page is " + seqs + ", expected " + want);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import common.PostObject;
+import common.ResponseMessage;
+
+/**
+ * Subscriptions opened while a lower seq is still being written: nothing
+ * is pushed past the visible watermark and nothing stored is lost.
+ */
+public class SubscriptionTest {
+
+    /**
+     * A post that stops inside addPost once it has its seq, holding that
+     * seq in flight until released.
+     */
+    private static class HeldPost extends PostObject {
+        final CountDownLatch assigned = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        HeldPost(String user) {
+            super(user, "bWVzc2FnZQ==", "a2V5", "aXY=");
+        }
+
+        @Override
+        public void setSeq(long seq) {
+            super.setSeq(seq);
+            assigned.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        openWhileLowerSeqInFlight();
+        System.out.println("[+] SubscriptionTest passed");
+    }
+
+    private static void openWhileLowerSeqInFlight() throws Exception {
+        BulletinBoard board = new BulletinBoard(tempBoard(), new BulletinBoard.Options().compactInterval(0));
+        for (int i = 0; i < 4; i++) {
+            check(board.addPost(post("bob")), "post " + (i + 1) + " was not stored");
+        }
+
+        // seq 5 is assigned and stays in flight
+        HeldPost held = new HeldPost("bob");
+        Thread writer = new Thread(() -> board.addPost(held));
+        writer.setDaemon(true);
+        writer.start();
+        held.assigned.await();
+
+        // seq 6 is stored and announced before the subscription opens
+        check(board.addPost(post("bob")), "post 6 was not stored");
+
+        List<Long> received = new ArrayList<>();
+        Runnable close = new Subscription(board, "bob", 0).open(message -> {
+            synchronized (received) {
+                for (PostObject post : ((ResponseMessage) message).getPosts()) {
+                    received.add(post.getSeq());
+                }
+            }
+        });
+
+        // seq 7 arrives while 5 is still in flight
+        check(board.addPost(post("bob")), "post 7 was not stored");
+        checkSeqs(received, 1, 2, 3, 4);
+
+        held.release.countDown();
+        writer.join();
+        checkSeqs(received, 1, 2, 3, 4, 5, 6, 7);
+
+        check(board.addPost(post("bob")), "post 8 was not stored");
+        checkSeqs(received, 1, 2, 3, 4, 5, 6, 7, 8);
+        close.run();
+    }
+
+    private static String tempBoard() throws IOException {
+        File dir = Files.createTempDirectory("subscription").toFile();
+        dir.deleteOnExit();
+        File board = new File(dir, "board.json");
+        board.deleteOnExit();
+        return board.getPath();
+    }
+
+    private static PostObject post(String user) {
+        return new PostObject(user, "bWVzc2FnZQ==", "a2V5", "aXY=");
+    }
+
+    private static void checkSeqs(List<Long> received, long... expected) {
+        List<Long> want = new ArrayList<>();
+        for (long seq : expected) {
+            want.add(seq);
+        }
+        synchronized (received) {
+            check(received.equals(want), "subscriber received " + received + ", expected " + want);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
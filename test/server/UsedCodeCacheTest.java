@@ -0,0 +1,53 @@
+package server;
+
+/**
+ * Replay rejection in the TOTP used-code cache and reuse of its buckets.
+ */
+public class UsedCodeCacheTest {
+
+    public static void main(String[] args) {
+        rejectsReusedCode();
+        keepsUsersAndStepsApart();
+        acceptsCodeAfterBucketRotatesOut();
+        System.out.println("[+] UsedCodeCacheTest passed");
+    }
+
+    private static void rejectsReusedCode() {
+        UsedCodeCache cache = new UsedCodeCache(1024);
+        long alice = UsedCodeCache.fingerprint("alice");
+
+        check(cache.claim(alice, 1000), "first use of a code was rejected");
+        check(!cache.claim(alice, 1000), "reused code was accepted");
+    }
+
+    private static void keepsUsersAndStepsApart() {
+        UsedCodeCache cache = new UsedCodeCache(1024);
+        long alice = UsedCodeCache.fingerprint("alice");
+        long bob = UsedCodeCache.fingerprint("bob");
+
+        check(cache.claim(alice, 1000), "alice's code was rejected");
+        check(cache.claim(bob, 1000), "bob's code for the same step was rejected");
+        check(cache.claim(alice, 1001), "alice's code for the next step was rejected");
+        check(!cache.claim(bob, 1000), "bob's reused code was accepted");
+    }
+
+    private static void acceptsCodeAfterBucketRotatesOut() {
+        UsedCodeCache cache = new UsedCodeCache(1024);
+        long alice = UsedCodeCache.fingerprint("alice");
+
+        check(cache.claim(alice, 1000), "first use of a code was rejected");
+
+        // four steps later the ring is back on the same bucket
+        check(cache.claim(alice, 1004), "code four steps later was rejected");
+        check(!cache.claim(alice, 1004), "reused code four steps later was accepted");
+
+        // step 1000's entry was overwritten; UserRecord's last step guards it from here
+        check(cache.claim(alice, 1000), "rotated-out step is still remembered");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import common.AckMessage;
+import common.AuthenticateMessage;
+import common.BatchPostMessage;
+import common.BatchPostResponseMessage;
+import common.CreateMessage;
+import common.GetMessage;
+import common.PostMessage;
+import common.PostObject;
+import common.PubKeyRequestMessage;
+import common.PubKeyResponseMessage;
+import common.ResponseMessage;
+import common.StatusMessage;
+import common.SubscribeMessage;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Every protocol message survives a trip through the binary framing and
+ * deserializes to the same message as its JSON form.
+ */
+public class BinaryCodecTest {
+
+    private static final String MESSAGE = "q83vASNFZ4mrze8BI0VniQ==";
+    private static final String WRAPPED_KEY = "3q2+7w==";
+    private static final String IV = "AAECAwQFBgcICQoL";
+
+    public static void main(String[] args) throws Exception {
+        roundTrip(new CreateMessage("alice", "hunter2", "cHVia2V5", "elgamal"), CreateMessage::new);
+        roundTrip(new AuthenticateMessage("alice", "hunter2", "123456"), AuthenticateMessage::new);
+        roundTrip(new PubKeyRequestMessage(List.of("alice", "bob")), PubKeyRequestMessage::new);
+        roundTrip(new PubKeyResponseMessage(List.of(
+            new PubKeyResponseMessage.Entry("alice", "cHVia2V5", "elgamal", "v1"),
+            new PubKeyResponseMessage.Entry("bob", "a2V5Mg==", "elgamal", "v2"))), PubKeyResponseMessage::new);
+        roundTrip(new PostMessage("bob", MESSAGE, WRAPPED_KEY, IV, "token", "elgamal"), PostMessage::new);
+        roundTrip(new BatchPostMessage(List.of(post("bob", 0, 0), post("carol", 0, 0)), "token"),
+            BatchPostMessage::new);
+        roundTrip(new BatchPostResponseMessage(List.of(new StatusMessage(true, "ok"),
+            new StatusMessage(false, "no such user"))), BatchPostResponseMessage::new);
+        roundTrip(new GetMessage("bob", 41, 25, "token"), GetMessage::new);
+        roundTrip(new ResponseMessage(List.of(post("bob", 42, 1700000000000L), post("bob", 43, 1700000001000L)),
+            43, true), ResponseMessage::new);
+        roundTrip(new StatusMessage(true, "Authentication successful.", "token"), StatusMessage::new);
+        roundTrip(new SubscribeMessage("bob", 43, "token"), SubscribeMessage::new);
+        roundTrip(new AckMessage("bob", 43, "token"), AckMessage::new);
+        keepsNonBase64ByteFieldAsText();
+        System.out.println("[+] BinaryCodecTest passed");
+    }
+
+    /**
+     * Encodes a message, decodes the frame, deserializes it into a fresh
+     * message and checks it serializes back to the original JSON.
+     */
+    private static void roundTrip(JSONSerializable message, Supplier<JSONSerializable> blank) throws IOException {
+        JSONObject json = (JSONObject) message.toJSONType();
+        String type = (String) json.get("type");
+
+        JSONObject decoded = decodeFrame(json);
+        check(type.equals(decoded.get("type")), type + " came back as " + decoded.get("type"));
+
+        JSONSerializable copy = blank.get();
+        copy.deserialize(decoded);
+        checkSame(type, json, copy.toJSONType());
+    }
+
+    private static void keepsNonBase64ByteFieldAsText() throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("type", "Post");
+        json.put("message", "not base64!");
+
+        JSONObject decoded = decodeFrame(json);
+        check("not base64!".equals(decoded.get("message")), "message came back as " + decoded.get("message"));
+    }
+
+    private static JSONObject decodeFrame(JSONObject json) throws IOException {
+        byte code = BinaryCodec.typeCode(json);
+        byte[] payload = BinaryCodec.encode(json);
+        return BinaryCodec.decode(code, ByteBuffer.wrap(payload));
+    }
+
+    private static PostObject post(String user, long seq, long time) {
+        PostObject post = new PostObject(user, MESSAGE, WRAPPED_KEY, IV);
+        post.setSeq(seq);
+        post.setTime(time);
+        post.setScheme("elgamal");
+        return post;
+    }
+
+    /**
+     * Compares two JSON values, treating numbers as equal when their values
+     * are (the binary form carries every number as a double).
+     */
+    private static void checkSame(String path, Object expected, Object actual) {
+        if (expected instanceof Number && actual instanceof Number) {
+            check(((Number) expected).doubleValue() == ((Number) actual).doubleValue(),
+                path + " is " + actual + ", expected " + expected);
+        } else if (expected instanceof JSONObject && actual instanceof JSONObject) {
+            Map<?, ?> want = (Map<?, ?>) expected;
+            Map<?, ?> got = (Map<?, ?>) actual;
+            check(want.keySet().equals(got.keySet()), path + " has fields " + got.keySet() + ", expected " + want.keySet());
+            for (Object key : want.keySet()) {
+                checkSame(path + "." + key, want.get(key), got.get(key));
+            }
+        } else if (expected instanceof JSONArray && actual instanceof JSONArray) {
+            List<?> want = (List<?>) expected;
+            List<?> got = (List<?>) actual;
+            check(want.size() == got.size(), path + " has " + got.size() + " items, expected " + want.size());
+            Iterator<?> it = got.iterator();
+            for (int i = 0; i < want.size(); i++) {
+                checkSame(path + "[" + i + "]", want.get(i), it.next());
+            }
+        } else {
+            check(expected == null ? actual == null : expected.equals(actual),
+                path + " is " + actual + ", expected " + expected);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}